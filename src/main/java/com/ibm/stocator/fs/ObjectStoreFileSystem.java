@@ -598,6 +598,29 @@ public class ObjectStoreFileSystem extends ExtendedFileSystem {
     }
   }
 
+  /**
+   * Wait for the uploads of the output streams already closed to be
+   * committed. Only needed when output streams commit asynchronously.
+   *
+   * @throws IOException if an upload failed
+   */
+  public void waitForPendingUploads() throws IOException {
+    if (storageClient != null) {
+      storageClient.waitForPendingUploads();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      if (storageClient != null) {
+        storageClient.close();
+      }
+    } finally {
+      super.close();
+    }
+  }
+
   @Override
   public String getHostnameScheme() {
     if (hostNameScheme.endsWith("/")) {
@@ -0,0 +1,107 @@
+/**
+ * (C) Copyright IBM Corp. 2015, 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.stocator.fs.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+/**
+ * JVM wide cache of the last bytes of objects, where columnar formats such
+ * as Parquet and ORC keep their footer.
+ * Entries are keyed by bucket, key and entity tag, so an overwritten object
+ * never returns stale data. The cache is bounded by the total number of
+ * cached bytes.
+ */
+public class FooterCache {
+  private final Cache<String, byte[]> tailCache;
+  private final long maxBytes;
+
+  /**
+   * Logger
+   */
+  private static final Logger LOG = LoggerFactory.getLogger(FooterCache.class);
+  private static FooterCache sInstance;
+
+  /**
+   * Get the JVM wide instance, shared by all the filesystems; the size is
+   * only used by the first call
+   *
+   * @param maxBytes maximum number of cached bytes
+   * @return the cache
+   */
+  public static synchronized FooterCache getInstance(long maxBytes) {
+    if (sInstance == null) {
+      sInstance = new FooterCache(maxBytes);
+    } else if (sInstance.maxBytes != maxBytes) {
+      LOG.warn("Footer cache already created with {} bytes, ignoring {} bytes",
+          sInstance.maxBytes, maxBytes);
+    }
+    return sInstance;
+  }
+
+  private FooterCache(long maxBytesT) {
+    LOG.debug("Footer cache initiated with size {} bytes", maxBytesT);
+    maxBytes = maxBytesT;
+    tailCache = CacheBuilder.newBuilder()
+        .maximumWeight(maxBytes)
+        .weigher(new Weigher<String, byte[]>() {
+          @Override
+          public int weigh(String key, byte[] value) {
+            return value.length;
+          }
+        }).build();
+  }
+
+  private static String cacheKey(String bucket, String key, String eTag) {
+    return bucket + "/" + key + "#" + eTag;
+  }
+
+  /**
+   * Add the tail of an object
+   *
+   * @param bucket bucket name
+   * @param key object key
+   * @param eTag entity tag of the object
+   * @param tail the last bytes of the object
+   */
+  public void putTail(String bucket, String key, String eTag, byte[] tail) {
+    LOG.trace("Footer cache - add {} bytes of {}/{}", tail.length, bucket, key);
+    tailCache.put(cacheKey(bucket, key, eTag), tail);
+  }
+
+  /**
+   * Get the cached tail of an object
+   *
+   * @param bucket bucket name
+   * @param key object key
+   * @param eTag entity tag of the object
+   * @return the last bytes of the object, or null if not cached
+   */
+  public byte[] getTail(String bucket, String key, String eTag) {
+    return tailCache.getIfPresent(cacheKey(bucket, key, eTag));
+  }
+
+  @Override
+  public String toString() {
+    return "FooterCache{entries=" + tailCache.size() + " maxBytes=" + maxBytes + "}";
+  }
+}
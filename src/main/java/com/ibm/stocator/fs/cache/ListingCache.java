@@ -0,0 +1,318 @@
+/**
+ * (C) Copyright IBM Corp. 2015, 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.stocator.fs.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+
+/**
+ * Short lived cache of object store listings, keyed by prefix, delimiter
+ * and flat listing mode, so the listings repeated by one query planning pass
+ * are answered from memory.
+ * The cached prefixes are indexed by a trie of their path segments: writing
+ * or deleting an object walks the segments of its name and only evicts the
+ * listings whose prefix the name starts with, the only ones which could
+ * contain it. Objects changed by other clients may stay hidden for up to the
+ * time to live, so the cache is disabled unless a time to live is
+ * configured.
+ *
+ * @param <V> type of a cached listing
+ */
+public class ListingCache<V> {
+  private static final Logger LOG = LoggerFactory.getLogger(ListingCache.class);
+
+  /**
+   * Cached listings; null when disabled.
+   */
+  private final Cache<Key, Entry<V>> listings;
+
+  /**
+   * Root of the trie of the cached prefixes; guarded by this.
+   */
+  private final Node root = new Node();
+
+  /**
+   * Number of invalidations, so a listing which started before an object was
+   * written is not cached; guarded by this.
+   */
+  private long generation;
+
+  /**
+   * @param maxWeight maximum total weight of the cached listings
+   * @param ttlMillis time to live of a listing in milliseconds, 0 or less to
+   *        disable the cache
+   * @param weigher weight of a listing, typically its number of entries
+   */
+  public ListingCache(long maxWeight, long ttlMillis, final Weigher<Key, V> weigher) {
+    if (ttlMillis > 0) {
+      LOG.debug("Listing cache initiated with weight {} expiration {} ms", maxWeight,
+          ttlMillis);
+      listings = CacheBuilder.newBuilder()
+          .maximumWeight(maxWeight)
+          .weigher(new Weigher<Key, Entry<V>>() {
+            @Override
+            public int weigh(Key key, Entry<V> entry) {
+              return weigher.weigh(key, entry.listing);
+            }
+          })
+          .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+          .removalListener(new RemovalListener<Key, Entry<V>>() {
+            @Override
+            public void onRemoval(RemovalNotification<Key, Entry<V>> notification) {
+              unregister(notification.getKey(), notification.getValue());
+            }
+          })
+          .recordStats().build();
+    } else {
+      listings = null;
+    }
+  }
+
+  /**
+   * @return false if no time to live is configured
+   */
+  public boolean isEnabled() {
+    return listings != null;
+  }
+
+  /**
+   * @param key the listing
+   * @return the cached listing, or null if not cached
+   */
+  public V get(Key key) {
+    if (listings == null) {
+      return null;
+    }
+    Entry<V> entry = listings.getIfPresent(key);
+    return entry == null ? null : entry.listing;
+  }
+
+  /**
+   * @return the generation to pass to {@link #put(Key, Object, long)}, read
+   *         before listing
+   */
+  public synchronized long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Cache a listing, unless an object was written since the listing started
+   *
+   * @param key the listing
+   * @param listing the result of the listing
+   * @param listGeneration generation read before listing
+   */
+  public synchronized void put(Key key, V listing, long listGeneration) {
+    if (listings == null || generation != listGeneration) {
+      return;
+    }
+    LOG.trace("Listing cache - add {}", key);
+    Node node = root;
+    for (String segment : segments(key.prefix)) {
+      Node child = node.children.get(segment);
+      if (child == null) {
+        child = new Node();
+        node.children.put(segment, child);
+      }
+      node = child;
+    }
+    Entry<V> entry = new Entry<>(listing);
+    node.keys.put(key, entry);
+    listings.put(key, entry);
+  }
+
+  /**
+   * Evict the listings which could contain an object written or deleted by
+   * this client
+   *
+   * @param name object name
+   */
+  public synchronized void invalidate(String name) {
+    if (listings == null) {
+      return;
+    }
+    generation++;
+    List<Key> evicted = new ArrayList<>();
+    Node node = root;
+    collect(node, name, evicted);
+    for (String segment : segments(name)) {
+      node = node.children.get(segment);
+      if (node == null) {
+        break;
+      }
+      collect(node, name, evicted);
+    }
+    if (!evicted.isEmpty()) {
+      LOG.trace("Listing cache - {} evicts {}", name, evicted);
+      listings.invalidateAll(evicted);
+    }
+  }
+
+  private void collect(Node node, String name, List<Key> evicted) {
+    for (Key key : node.keys.keySet()) {
+      if (name.startsWith(key.prefix)) {
+        evicted.add(key);
+      }
+    }
+  }
+
+  /**
+   * Remove a listing from the trie, unless the notification is late and the
+   * prefix was cached again since: the trie then holds the new entry.
+   */
+  private synchronized void unregister(Key key, Entry<V> entry) {
+    Node node = root;
+    List<Node> path = new ArrayList<>();
+    path.add(node);
+    List<String> segments = segments(key.prefix);
+    for (String segment : segments) {
+      node = node.children.get(segment);
+      if (node == null) {
+        return;
+      }
+      path.add(node);
+    }
+    if (node.keys.get(key) != entry) {
+      return;
+    }
+    node.keys.remove(key);
+    // prune the branch left empty
+    for (int i = segments.size(); i > 0; i--) {
+      Node current = path.get(i);
+      if (!current.keys.isEmpty() || !current.children.isEmpty()) {
+        break;
+      }
+      path.get(i - 1).children.remove(segments.get(i - 1));
+    }
+  }
+
+  /**
+   * @return the number of nodes of the trie, the root included
+   */
+  synchronized int getTrieSize() {
+    return count(root);
+  }
+
+  private int count(Node node) {
+    int count = 1;
+    for (Node child : node.children.values()) {
+      count += count(child);
+    }
+    return count;
+  }
+
+  /**
+   * The complete segments of a name: a listing of prefix {@code a/b/c} is
+   * indexed under {@code a/b} since it also matches {@code a/b/cd}.
+   */
+  private static List<String> segments(String name) {
+    List<String> segments = new ArrayList<>();
+    int start = 0;
+    int end;
+    while ((end = name.indexOf('/', start)) >= 0) {
+      segments.add(name.substring(start, end));
+      start = end + 1;
+    }
+    return segments;
+  }
+
+  @Override
+  public String toString() {
+    if (listings == null) {
+      return "ListingCache{disabled}";
+    }
+    return "ListingCache{size=" + listings.size() + " hits=" + listings.stats().hitCount()
+        + " misses=" + listings.stats().missCount()
+        + " evictions=" + listings.stats().evictionCount() + "}";
+  }
+
+  /**
+   * Key of a listing.
+   */
+  public static final class Key {
+    private final String prefix;
+    private final String delimiter;
+    private final boolean flat;
+
+    /**
+     * @param prefixT prefix of the listed names
+     * @param delimiterT delimiter, or null
+     * @param flatT whether the listing is flat
+     */
+    public Key(String prefixT, String delimiterT, boolean flatT) {
+      prefix = prefixT;
+      delimiter = delimiterT;
+      flat = flatT;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return prefix.equals(other.prefix) && flat == other.flat
+          && (delimiter == null ? other.delimiter == null : delimiter.equals(other.delimiter));
+    }
+
+    @Override
+    public int hashCode() {
+      return (prefix.hashCode() * 31 + (delimiter == null ? 0 : delimiter.hashCode())) * 31
+          + (flat ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+      return prefix + (delimiter == null ? "" : " delimiter " + delimiter)
+          + (flat ? " flat" : "");
+    }
+  }
+
+  /**
+   * A cached listing; each put creates a new entry, so a removal
+   * notification can be matched with the entry registered in the trie.
+   */
+  private static final class Entry<V> {
+    private final V listing;
+
+    private Entry(V listingT) {
+      listing = listingT;
+    }
+  }
+
+  /**
+   * Node of the trie: the entries of the listings whose prefix ends in this
+   * segment.
+   */
+  private final class Node {
+    private final Map<String, Node> children = new HashMap<>();
+    private final Map<Key, Entry<V>> keys = new HashMap<>();
+  }
+}
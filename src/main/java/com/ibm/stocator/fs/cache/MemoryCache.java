@@ -17,7 +17,6 @@
 
 package com.ibm.stocator.fs.cache;
 
-import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.hadoop.fs.FileStatus;
@@ -26,10 +25,12 @@ import org.slf4j.LoggerFactory;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 
 /**
  * Wrapper class adding an internal cache layer for objects metadata,
  * This cache is populated by the list function and on-the-fly requests for objects.
+ * Each store owns its cache, sized and expired by its own configuration.
  */
 public class MemoryCache {
   private final Cache<String, FileStatus> fsCache;
@@ -38,20 +39,17 @@ public class MemoryCache {
    * Logger
    */
   private static final Logger LOG = LoggerFactory.getLogger(MemoryCache.class);
-  private static MemoryCache sInstance;
 
-  public static MemoryCache getInstance(int cacheSize) {
-    if (sInstance == null) {
-      sInstance = new MemoryCache(cacheSize);
-    }
-    return sInstance;
-  }
-
-  private MemoryCache(int cacheSize) {
-    LOG.debug("Guava initiated with size {} expiration 30 seconds", cacheSize);
+  /**
+   * @param cacheSize maximum number of entries
+   * @param ttlMillis time to live of an entry in milliseconds
+   */
+  public MemoryCache(int cacheSize, long ttlMillis) {
+    LOG.debug("Guava initiated with size {} expiration {} ms", cacheSize, ttlMillis);
     fsCache = CacheBuilder.newBuilder()
         .maximumSize(cacheSize)
-        .expireAfterWrite(30, TimeUnit.SECONDS).build();
+        .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+        .recordStats().build();
   }
 
   public void putFileStatus(String path, FileStatus fs) {
@@ -64,19 +62,41 @@ public class MemoryCache {
     fsCache.invalidate(path);
   }
 
-  public FileStatus getFileStatus(final String path) {
-    LOG.debug("Guava - get from cache {}", path);
-    try {
-      return fsCache.get(path, new Callable<FileStatus>() {
-        @Override
-        public FileStatus call() throws Exception {
-          LOG.debug("Guava cache {} return null", path);
-          return null;
-        }
-      });
-    } catch (Exception e) {
-      LOG.debug("Guava - " + e.getMessage());
-    }
-    return null;
+  /**
+   * Get the cached status of a path
+   *
+   * @param path the path
+   * @return the status, or null if not cached
+   */
+  public FileStatus getFileStatus(String path) {
+    return fsCache.getIfPresent(path);
+  }
+
+  /**
+   * @return the number of lookups which found a status
+   */
+  public long getHitCount() {
+    return fsCache.stats().hitCount();
+  }
+
+  /**
+   * @return the number of lookups which found no status
+   */
+  public long getMissCount() {
+    return fsCache.stats().missCount();
+  }
+
+  /**
+   * @return the number of entries evicted by size or expiration
+   */
+  public long getEvictionCount() {
+    return fsCache.stats().evictionCount();
+  }
+
+  @Override
+  public String toString() {
+    CacheStats stats = fsCache.stats();
+    return "MemoryCache{size=" + fsCache.size() + " hits=" + stats.hitCount()
+        + " misses=" + stats.missCount() + " evictions=" + stats.evictionCount() + "}";
   }
 }
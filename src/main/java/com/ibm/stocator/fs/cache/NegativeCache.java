@@ -0,0 +1,137 @@
+/**
+ * (C) Copyright IBM Corp. 2015, 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.stocator.fs.cache;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Short lived cache of the object names found not to exist, so repeated
+ * existence probes of the same missing path are answered without a request.
+ * Writing an object invalidates its name, its parents, which become pseudo
+ * directories, and its children. Objects created by other clients may stay
+ * hidden for up to the time to live, so the cache is disabled unless a time
+ * to live is configured.
+ */
+public class NegativeCache {
+  private static final Logger LOG = LoggerFactory.getLogger(NegativeCache.class);
+
+  /**
+   * Cached names without trailing slash; null when disabled.
+   */
+  private final Cache<String, Boolean> notFound;
+
+  /**
+   * Number of invalidations, so a lookup which started before an object was
+   * written does not record it as missing.
+   */
+  private final AtomicLong generation = new AtomicLong();
+
+  /**
+   * @param cacheSize maximum number of names
+   * @param ttlMillis time to live of a name in milliseconds, 0 or less to
+   *        disable the cache
+   */
+  public NegativeCache(int cacheSize, long ttlMillis) {
+    if (ttlMillis > 0) {
+      LOG.debug("Negative cache initiated with size {} expiration {} ms", cacheSize,
+          ttlMillis);
+      notFound = CacheBuilder.newBuilder()
+          .maximumSize(cacheSize)
+          .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+          .recordStats().build();
+    } else {
+      notFound = null;
+    }
+  }
+
+  private static String normalize(String name) {
+    return name.endsWith("/") ? name.substring(0, name.length() - 1) : name;
+  }
+
+  /**
+   * @param name object name
+   * @return true if the object was recently found not to exist
+   */
+  public boolean isNotFound(String name) {
+    return notFound != null && notFound.getIfPresent(normalize(name)) != null;
+  }
+
+  /**
+   * @return the generation to pass to {@link #putNotFound(String, long)},
+   *         read before looking the object up
+   */
+  public long getGeneration() {
+    return generation.get();
+  }
+
+  /**
+   * Record that an object does not exist, unless an object was written since
+   * the lookup started
+   *
+   * @param name object name
+   * @param lookupGeneration generation read before the lookup
+   */
+  public synchronized void putNotFound(String name, long lookupGeneration) {
+    if (notFound != null && generation.get() == lookupGeneration) {
+      LOG.trace("Negative cache - add {}", name);
+      notFound.put(normalize(name), Boolean.TRUE);
+    }
+  }
+
+  /**
+   * Forget an object written by this client, its parents and its children
+   *
+   * @param name object name
+   */
+  public synchronized void invalidate(String name) {
+    if (notFound == null) {
+      return;
+    }
+    generation.incrementAndGet();
+    String normalized = normalize(name);
+    LOG.trace("Negative cache - invalidate {}", normalized);
+    for (String parent = normalized; !parent.isEmpty();
+        parent = parent.substring(0, Math.max(parent.lastIndexOf('/'), 0))) {
+      notFound.invalidate(parent);
+    }
+    String prefix = normalized + "/";
+    Iterator<String> it = notFound.asMap().keySet().iterator();
+    while (it.hasNext()) {
+      if (it.next().startsWith(prefix)) {
+        it.remove();
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    if (notFound == null) {
+      return "NegativeCache{disabled}";
+    }
+    return "NegativeCache{size=" + notFound.size() + " hits=" + notFound.stats().hitCount()
+        + " misses=" + notFound.stats().missCount() + "}";
+  }
+}
@@ -0,0 +1,128 @@
+/**
+ * (C) Copyright IBM Corp. 2015, 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.stocator.fs.cache;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Coalesces concurrent identical requests: the first caller asking for a key
+ * runs the request and the callers arriving while it is in flight wait for
+ * its result or its exception instead of sending their own request.
+ * Nothing is kept once the request completes.
+ *
+ * @param <K> type of the keys
+ * @param <V> type of the results
+ */
+public class SingleFlight<K, V> {
+  private static final Logger LOG = LoggerFactory.getLogger(SingleFlight.class);
+
+  private final String name;
+  private final ConcurrentMap<K, SettableFuture<V>> inFlight = new ConcurrentHashMap<>();
+  private final AtomicLong calls = new AtomicLong();
+  private final AtomicLong shared = new AtomicLong();
+
+  /**
+   * @param nameT name of the requests, used in logs
+   */
+  public SingleFlight(String nameT) {
+    name = nameT;
+  }
+
+  /**
+   * Run a request, or wait for the identical request already in flight
+   *
+   * @param key key identifying the request
+   * @param request the request
+   * @return the result of the request
+   * @throws IOException if the request failed
+   */
+  public V execute(K key, Callable<V> request) throws IOException {
+    calls.incrementAndGet();
+    SettableFuture<V> future = SettableFuture.create();
+    SettableFuture<V> leader = inFlight.putIfAbsent(key, future);
+    if (leader != null) {
+      shared.incrementAndGet();
+      LOG.trace("{} of {} joins the request in flight", name, key);
+      return await(key, leader);
+    }
+    try {
+      V result = request.call();
+      future.set(result);
+      return result;
+    } catch (Exception e) {
+      future.setException(e);
+      throw rethrow(e);
+    } catch (Error e) {
+      future.setException(e);
+      throw e;
+    } finally {
+      inFlight.remove(key, future);
+    }
+  }
+
+  private V await(K key, SettableFuture<V> leader) throws IOException {
+    try {
+      return leader.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw (InterruptedIOException) new InterruptedIOException(
+          "Interrupted waiting for " + name + " of " + key).initCause(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw rethrow((Exception) cause);
+    }
+  }
+
+  /**
+   * Throw the exception of a request, wrapped if it is checked and not an
+   * IOException
+   *
+   * @param e exception of the request
+   * @return never returns, so callers can write {@code throw rethrow(e)}
+   * @throws IOException the exception
+   */
+  private IOException rethrow(Exception e) throws IOException {
+    if (e instanceof IOException) {
+      throw (IOException) e;
+    }
+    if (e instanceof RuntimeException) {
+      throw (RuntimeException) e;
+    }
+    throw new IOException(name + " failed", e);
+  }
+
+  @Override
+  public String toString() {
+    return "SingleFlight{name=" + name + " calls=" + calls + " shared=" + shared
+        + " inFlight=" + inFlight.size() + "}";
+  }
+}
@@ -143,6 +143,10 @@ public class Constants {
   public static final String TRASH_FOLDER = ".Trash";
   public static final String CACHE_SIZE = "fs.stocator.cache.size";
   public static final int GUAVA_CACHE_SIZE_DEFAULT = 2000;
+  public static final String CACHE_TTL = "fs.stocator.cache.ttl";
+  public static final long CACHE_TTL_DEFAULT = 30000;
+  public static final String NEGATIVE_CACHE_TTL = "fs.stocator.negative.cache.ttl";
+  public static final long NEGATIVE_CACHE_TTL_DEFAULT = 0;
   public static final String FS_STOCATOR_GLOB_BRACKET_SUPPORT = "fs.stocator.glob.bracket.support";
   public static final String FS_STOCATOR_GLOB_BRACKET_SUPPORT_DEFAULT = "false";
   public static final String FS_STOCATOR_FMODE_DATA_CLEANUP = "fs.stocator.failure.data.cleanup";
@@ -212,4 +212,17 @@ public interface IStoreClient {
    */
   public Path qualify(Path path);
 
+  /**
+   * Wait for the uploads of the output streams already closed to be
+   * committed
+   * @throws IOException if an upload failed
+   */
+  public void waitForPendingUploads() throws IOException;
+
+  /**
+   * Release the resources of the driver once pending uploads are committed
+   * @throws IOException if an upload failed
+   */
+  public void close() throws IOException;
+
 }
@@ -30,16 +30,24 @@ import java.net.URI;
 import java.util.Map;
 import java.util.List;
 import java.util.Properties;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Date;
 
+import com.ibm.stocator.fs.cache.FooterCache;
+import com.ibm.stocator.fs.cache.ListingCache;
 import com.ibm.stocator.fs.cache.MemoryCache;
+import com.ibm.stocator.fs.cache.NegativeCache;
+import com.ibm.stocator.fs.cache.SingleFlight;
 import com.ibm.stocator.fs.common.Constants;
 import com.ibm.stocator.fs.common.IStoreClient;
 import com.ibm.stocator.fs.common.StocatorPath;
@@ -77,7 +85,12 @@ import com.amazonaws.services.s3.transfer.TransferManager;
 import com.amazonaws.services.s3.transfer.TransferManagerConfiguration;
 import com.amazonaws.services.s3.transfer.Upload;
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.Protocol;
 
@@ -98,6 +111,10 @@ import static com.ibm.stocator.fs.common.Constants.HADOOP_TEMPORARY;
 import static com.ibm.stocator.fs.common.Constants.HADOOP_PART;
 import static com.ibm.stocator.fs.common.Constants.CACHE_SIZE;
 import static com.ibm.stocator.fs.common.Constants.GUAVA_CACHE_SIZE_DEFAULT;
+import static com.ibm.stocator.fs.common.Constants.CACHE_TTL;
+import static com.ibm.stocator.fs.common.Constants.CACHE_TTL_DEFAULT;
+import static com.ibm.stocator.fs.common.Constants.NEGATIVE_CACHE_TTL;
+import static com.ibm.stocator.fs.common.Constants.NEGATIVE_CACHE_TTL_DEFAULT;
 import static com.ibm.stocator.fs.cos.COSConstants.CLIENT_EXEC_TIMEOUT;
 import static com.ibm.stocator.fs.cos.COSConstants.DEFAULT_CLIENT_EXEC_TIMEOUT;
 import static com.ibm.stocator.fs.cos.COSConstants.DEFAULT_ESTABLISH_TIMEOUT;
@@ -123,6 +140,14 @@ import static com.ibm.stocator.fs.cos.COSConstants.MAX_ERROR_RETRIES;
 import static com.ibm.stocator.fs.cos.COSConstants.MAX_THREADS;
 import static com.ibm.stocator.fs.cos.COSConstants.MAX_TOTAL_TASKS;
 import static com.ibm.stocator.fs.cos.COSConstants.MIN_MULTIPART_THRESHOLD;
+import static com.ibm.stocator.fs.cos.COSConstants.FILE_STATUS_PARALLEL_PROBE;
+import static com.ibm.stocator.fs.cos.COSConstants.DEFAULT_FILE_STATUS_PARALLEL_PROBE;
+import static com.ibm.stocator.fs.cos.COSConstants.FILE_STATUS_PARALLEL_PROBE_THREADS;
+import static com.ibm.stocator.fs.cos.COSConstants.DEFAULT_FILE_STATUS_PARALLEL_PROBE_THREADS;
+import static com.ibm.stocator.fs.cos.COSConstants.LIST_CACHE_TTL;
+import static com.ibm.stocator.fs.cos.COSConstants.DEFAULT_LIST_CACHE_TTL;
+import static com.ibm.stocator.fs.cos.COSConstants.LIST_CACHE_MAX_ENTRIES;
+import static com.ibm.stocator.fs.cos.COSConstants.DEFAULT_LIST_CACHE_MAX_ENTRIES;
 import static com.ibm.stocator.fs.cos.COSConstants.MULTIPART_SIZE;
 import static com.ibm.stocator.fs.cos.COSConstants.PROXY_DOMAIN;
 import static com.ibm.stocator.fs.cos.COSConstants.PROXY_HOST;
@@ -158,17 +183,58 @@ import static com.ibm.stocator.fs.cos.COSConstants.FAST_UPLOAD_BUFFER;
 import static com.ibm.stocator.fs.cos.COSConstants.DEFAULT_FAST_UPLOAD_BUFFER;
 import static com.ibm.stocator.fs.cos.COSConstants.FAST_UPLOAD_ACTIVE_BLOCKS;
 import static com.ibm.stocator.fs.cos.COSConstants.DEFAULT_FAST_UPLOAD_ACTIVE_BLOCKS;
+import static com.ibm.stocator.fs.cos.COSConstants.FAST_UPLOAD_ARRAY_POOL_SIZE;
+import static com.ibm.stocator.fs.cos.COSConstants.DEFAULT_FAST_UPLOAD_ARRAY_POOL_SIZE;
+import static com.ibm.stocator.fs.cos.COSConstants.FAST_UPLOAD_ARRAY_POOL_TIMEOUT;
+import static com.ibm.stocator.fs.cos.COSConstants.DEFAULT_FAST_UPLOAD_ARRAY_POOL_TIMEOUT;
+import static com.ibm.stocator.fs.cos.COSConstants.MEMORY_BUDGET;
+import static com.ibm.stocator.fs.cos.COSConstants.FAST_UPLOAD_ASYNC_CLOSE;
+import static com.ibm.stocator.fs.cos.COSConstants.DEFAULT_FAST_UPLOAD_ASYNC_CLOSE;
+import static com.ibm.stocator.fs.cos.COSConstants.FAST_UPLOAD_CONTENT_MD5;
+import static com.ibm.stocator.fs.cos.COSConstants.DEFAULT_FAST_UPLOAD_CONTENT_MD5;
+import static com.ibm.stocator.fs.cos.COSConstants.FAST_UPLOAD_SCHEDULER_THREADS;
+import static com.ibm.stocator.fs.cos.COSConstants.DEFAULT_FAST_UPLOAD_SCHEDULER_THREADS;
+import static com.ibm.stocator.fs.cos.COSConstants.MULTIPART_SIZE_MAX;
+import static com.ibm.stocator.fs.cos.COSConstants.DEFAULT_MULTIPART_SIZE_MAX;
+import static com.ibm.stocator.fs.cos.COSConstants.MULTIPART_SIZE_GROWTH_INTERVAL;
+import static com.ibm.stocator.fs.cos.COSConstants.DEFAULT_MULTIPART_SIZE_GROWTH_INTERVAL;
+import static com.ibm.stocator.fs.cos.COSConstants.DEFAULT_MEMORY_BUDGET;
 import static com.ibm.stocator.fs.cos.COSConstants.MAX_PAGING_KEYS;
 import static com.ibm.stocator.fs.cos.COSConstants.DEFAULT_MAX_PAGING_KEYS;
 import static com.ibm.stocator.fs.cos.COSConstants.FLAT_LISTING;
 import static com.ibm.stocator.fs.cos.COSConstants.DEFAULT_FLAT_LISTING;
 import static com.ibm.stocator.fs.cos.COSConstants.READAHEAD_RANGE;
 import static com.ibm.stocator.fs.cos.COSConstants.DEFAULT_READAHEAD_RANGE;
+import static com.ibm.stocator.fs.cos.COSConstants.PREFETCH_BLOCKS;
+import static com.ibm.stocator.fs.cos.COSConstants.DEFAULT_PREFETCH_BLOCKS;
+import static com.ibm.stocator.fs.cos.COSConstants.PREFETCH_BLOCK_SIZE;
+import static com.ibm.stocator.fs.cos.COSConstants.DEFAULT_PREFETCH_BLOCK_SIZE;
+import static com.ibm.stocator.fs.cos.COSConstants.VECTORED_READ_MIN_SEEK_SIZE;
+import static com.ibm.stocator.fs.cos.COSConstants.DEFAULT_VECTORED_READ_MIN_SEEK_SIZE;
+import static com.ibm.stocator.fs.cos.COSConstants.VECTORED_READ_MAX_MERGED_SIZE;
+import static com.ibm.stocator.fs.cos.COSConstants.DEFAULT_VECTORED_READ_MAX_MERGED_SIZE;
+import static com.ibm.stocator.fs.cos.COSConstants.FOOTER_CACHE_SIZE;
+import static com.ibm.stocator.fs.cos.COSConstants.DEFAULT_FOOTER_CACHE_SIZE;
+import static com.ibm.stocator.fs.cos.COSConstants.FOOTER_CACHE_LENGTH;
+import static com.ibm.stocator.fs.cos.COSConstants.DEFAULT_FOOTER_CACHE_LENGTH;
+import static com.ibm.stocator.fs.cos.COSConstants.BLOCK_CACHE_SIZE;
+import static com.ibm.stocator.fs.cos.COSConstants.DEFAULT_BLOCK_CACHE_SIZE;
+import static com.ibm.stocator.fs.cos.COSConstants.BLOCK_CACHE_BLOCK_SIZE;
+import static com.ibm.stocator.fs.cos.COSConstants.DEFAULT_BLOCK_CACHE_BLOCK_SIZE;
+import static com.ibm.stocator.fs.cos.COSConstants.HEDGED_READ;
+import static com.ibm.stocator.fs.cos.COSConstants.DEFAULT_HEDGED_READ;
+import static com.ibm.stocator.fs.cos.COSConstants.HEDGED_READ_PERCENTILE;
+import static com.ibm.stocator.fs.cos.COSConstants.DEFAULT_HEDGED_READ_PERCENTILE;
+import static com.ibm.stocator.fs.cos.COSConstants.HEDGED_READ_MIN_DELAY;
+import static com.ibm.stocator.fs.cos.COSConstants.DEFAULT_HEDGED_READ_MIN_DELAY;
+import static com.ibm.stocator.fs.cos.COSConstants.HEDGED_READ_BUDGET;
+import static com.ibm.stocator.fs.cos.COSConstants.DEFAULT_HEDGED_READ_BUDGET;
 import static com.ibm.stocator.fs.cos.COSConstants.INPUT_FADVISE;
 import static com.ibm.stocator.fs.cos.COSConstants.INPUT_FADV_NORMAL;
 import static com.ibm.stocator.fs.cos.COSConstants.BUFFER_DIR;
 import static com.ibm.stocator.fs.common.Constants.FS_STOCATOR_FMODE_DATA_CLEANUP_DEFAULT;
 
+import static com.ibm.stocator.fs.cos.COSUtils.extractException;
 import static com.ibm.stocator.fs.cos.COSUtils.translateException;
 
 public class COSAPIClient implements IStoreClient {
@@ -221,6 +287,8 @@ public class COSAPIClient implements IStoreClient {
   private Configuration conf;
   private TransferManager transfers;
   private long partSize;
+  private long maxPartSize;
+  private int partSizeGrowthInterval;
   private long multiPartThreshold;
   private ListeningExecutorService threadPoolExecutor;
   private ExecutorService unboundedThreadPool;
@@ -232,10 +300,46 @@ public class COSAPIClient implements IStoreClient {
   private String blockOutputBuffer;
   private COSDataBlocks.BlockFactory blockFactory;
   private int blockOutputActiveBlocks;
+  private COSUploadScheduler uploadScheduler;
+  private boolean uploadContentMD5;
+  private boolean uploadAsyncClose;
+
+  /**
+   * Commits of the output streams closed asynchronously which are running or
+   * have not been waited for yet; guarded by itself.
+   */
+  private final List<ListenableFuture<Void>> pendingCommits = new ArrayList<>();
+  private long uploadBufferPoolSize;
+  private long uploadBufferPoolTimeout;
+  private COSMemoryBudget memoryBudget;
   private MemoryCache memoryCache;
+  private boolean parallelProbe;
+  private ListeningExecutorService probeExecutor;
+  private NegativeCache negativeCache;
+  private ListingCache<List<ObjectListingPage>> listingCache;
+  private final SingleFlight<String, FileStatus> fileStatusFlights =
+      new SingleFlight<>("getFileStatus");
+  /**
+   * Number of objects written or deleted by this client. It is part of the
+   * key of the getFileStatus flights, so a lookup starting after a write
+   * does not join one which started before it and may miss the object.
+   */
+  private final AtomicLong writeGeneration = new AtomicLong();
+  private final SingleFlight<String, Boolean> jobStatusFlights =
+      new SingleFlight<>("isJobSuccessful");
+  private final SingleFlight<String, Boolean> stocatorOriginFlights =
+      new SingleFlight<>("isStocatorOrigin");
   private int maxKeys;
   private boolean flatListingFlag;
   private long readAhead;
+  private int prefetchBlocks;
+  private int prefetchBlockSize;
+  private int vectoredReadMinSeek;
+  private int vectoredReadMaxMergedSize;
+  private FooterCache footerCache;
+  private int footerCacheLength;
+  private COSLocalBlockCache blockCache;
+  private COSReadHedger readHedger;
   private COSInputPolicy inputPolicy;
   private int cacheSize;
   private Statistics statistics;
@@ -256,12 +360,14 @@ public class COSAPIClient implements IStoreClient {
   @Override
   public void initiate(String scheme) throws IOException, ConfigurationParseException {
     mCachedSparkOriginated = new ConcurrentHashMap<String, Boolean>();
-    mCachedSparkJobsStatus = new HashMap<String, Boolean>();
+    mCachedSparkJobsStatus = new ConcurrentHashMap<String, Boolean>();
     schemaProvided = scheme;
     Properties props = ConfigurationHandler.initialize(filesystemURI, conf, scheme);
     // Set bucket name property
     int cacheSize = conf.getInt(CACHE_SIZE, GUAVA_CACHE_SIZE_DEFAULT);
-    memoryCache = MemoryCache.getInstance(cacheSize);
+    memoryCache = new MemoryCache(cacheSize, conf.getLong(CACHE_TTL, CACHE_TTL_DEFAULT));
+    negativeCache = new NegativeCache(cacheSize,
+        conf.getLong(NEGATIVE_CACHE_TTL, NEGATIVE_CACHE_TTL_DEFAULT));
     mBucket = props.getProperty(COS_BUCKET_PROPERTY);
     workingDir = new Path("/user", System.getProperty("user.name")).makeQualified(filesystemURI,
         getWorkingDirectory());
@@ -385,9 +491,71 @@ public class COSAPIClient implements IStoreClient {
         DEFAULT_MULTIPART_SIZE);
     multiPartThreshold = Utils.getLong(conf, FS_COS, FS_ALT_KEYS,
         MIN_MULTIPART_THRESHOLD, DEFAULT_MIN_MULTIPART_THRESHOLD);
+    parallelProbe = Utils.getBoolean(conf, FS_COS, FS_ALT_KEYS,
+        FILE_STATUS_PARALLEL_PROBE, DEFAULT_FILE_STATUS_PARALLEL_PROBE);
+    if (parallelProbe) {
+      int probeThreads = Utils.getInt(conf, FS_COS, FS_ALT_KEYS,
+          FILE_STATUS_PARALLEL_PROBE_THREADS, DEFAULT_FILE_STATUS_PARALLEL_PROBE_THREADS);
+      ThreadPoolExecutor probePool = new ThreadPoolExecutor(probeThreads, probeThreads,
+          keepAliveTime, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+          BlockingThreadPoolExecutorService.newDaemonThreadFactory("s3a-metadata-probe"));
+      probePool.allowCoreThreadTimeOut(true);
+      probeExecutor = MoreExecutors.listeningDecorator(probePool);
+    }
+    listingCache = new ListingCache<>(
+        Utils.getLong(conf, FS_COS, FS_ALT_KEYS, LIST_CACHE_MAX_ENTRIES,
+            DEFAULT_LIST_CACHE_MAX_ENTRIES),
+        Utils.getLong(conf, FS_COS, FS_ALT_KEYS, LIST_CACHE_TTL, DEFAULT_LIST_CACHE_TTL),
+        new Weigher<ListingCache.Key, List<ObjectListingPage>>() {
+          @Override
+          public int weigh(ListingCache.Key key, List<ObjectListingPage> pages) {
+            int weight = 1;
+            for (ObjectListingPage page : pages) {
+              weight += page.summaries.size() + page.commonPrefixes.size();
+            }
+            return weight;
+          }
+        });
     readAhead = Utils.getLong(conf, FS_COS, FS_ALT_KEYS, READAHEAD_RANGE,
         DEFAULT_READAHEAD_RANGE);
     LOG.debug(READAHEAD_RANGE + ":" + readAhead);
+    memoryBudget = COSMemoryBudget.getInstance(Utils.getLong(conf, FS_COS, FS_ALT_KEYS,
+        MEMORY_BUDGET, DEFAULT_MEMORY_BUDGET));
+    prefetchBlocks = Utils.getInt(conf, FS_COS, FS_ALT_KEYS, PREFETCH_BLOCKS,
+        DEFAULT_PREFETCH_BLOCKS);
+    prefetchBlockSize = Utils.getInt(conf, FS_COS, FS_ALT_KEYS, PREFETCH_BLOCK_SIZE,
+        DEFAULT_PREFETCH_BLOCK_SIZE);
+    LOG.debug("{}:{} {}:{}", PREFETCH_BLOCKS, prefetchBlocks, PREFETCH_BLOCK_SIZE,
+        prefetchBlockSize);
+    vectoredReadMinSeek = Utils.getInt(conf, FS_COS, FS_ALT_KEYS,
+        VECTORED_READ_MIN_SEEK_SIZE, DEFAULT_VECTORED_READ_MIN_SEEK_SIZE);
+    vectoredReadMaxMergedSize = Utils.getInt(conf, FS_COS, FS_ALT_KEYS,
+        VECTORED_READ_MAX_MERGED_SIZE, DEFAULT_VECTORED_READ_MAX_MERGED_SIZE);
+    long footerCacheSize = Utils.getLong(conf, FS_COS, FS_ALT_KEYS, FOOTER_CACHE_SIZE,
+        DEFAULT_FOOTER_CACHE_SIZE);
+    if (footerCacheSize > 0) {
+      footerCache = FooterCache.getInstance(footerCacheSize);
+      footerCacheLength = Utils.getInt(conf, FS_COS, FS_ALT_KEYS, FOOTER_CACHE_LENGTH,
+          DEFAULT_FOOTER_CACHE_LENGTH);
+    }
+    long blockCacheSize = Utils.getLong(conf, FS_COS, FS_ALT_KEYS, BLOCK_CACHE_SIZE,
+        DEFAULT_BLOCK_CACHE_SIZE);
+    if (blockCacheSize > 0) {
+      int blockCacheBlockSize = Utils.getInt(conf, FS_COS, FS_ALT_KEYS,
+          BLOCK_CACHE_BLOCK_SIZE, DEFAULT_BLOCK_CACHE_BLOCK_SIZE);
+      blockCache = COSLocalBlockCache.getInstance(getDirectoryAllocator(), conf,
+          blockCacheSize, blockCacheBlockSize);
+    }
+    if (Utils.getBoolean(conf, FS_COS, FS_ALT_KEYS, HEDGED_READ, DEFAULT_HEDGED_READ)) {
+      double hedgedReadPercentile = Double.parseDouble(Utils.getTrimmed(conf, FS_COS,
+          FS_ALT_KEYS, HEDGED_READ_PERCENTILE, String.valueOf(DEFAULT_HEDGED_READ_PERCENTILE)));
+      double hedgedReadBudget = Double.parseDouble(Utils.getTrimmed(conf, FS_COS,
+          FS_ALT_KEYS, HEDGED_READ_BUDGET, String.valueOf(DEFAULT_HEDGED_READ_BUDGET)));
+      long hedgedReadMinDelay = Utils.getLong(conf, FS_COS, FS_ALT_KEYS,
+          HEDGED_READ_MIN_DELAY, DEFAULT_HEDGED_READ_MIN_DELAY);
+      readHedger = new COSReadHedger(hedgedReadPercentile, hedgedReadMinDelay,
+          hedgedReadBudget, maxThreads);
+    }
     inputPolicy = COSInputPolicy.getPolicy(
         Utils.getTrimmed(conf,  FS_COS, FS_ALT_KEYS, INPUT_FADVISE, INPUT_FADV_NORMAL));
 
@@ -434,13 +602,28 @@ public class COSAPIClient implements IStoreClient {
     blockUploadEnabled = Utils.getBoolean(conf, FS_COS, FS_ALT_KEYS,
         FAST_UPLOAD, DEFAULT_FAST_UPLOAD);
 
+    blockOutputActiveBlocks = Utils.getInt(conf, FS_COS, FS_ALT_KEYS,
+        FAST_UPLOAD_ACTIVE_BLOCKS, DEFAULT_FAST_UPLOAD_ACTIVE_BLOCKS);
+    maxPartSize = Utils.getLong(conf, FS_COS, FS_ALT_KEYS, MULTIPART_SIZE_MAX,
+        DEFAULT_MULTIPART_SIZE_MAX);
+    partSizeGrowthInterval = Utils.getInt(conf, FS_COS, FS_ALT_KEYS,
+        MULTIPART_SIZE_GROWTH_INTERVAL, DEFAULT_MULTIPART_SIZE_GROWTH_INTERVAL);
     if (blockUploadEnabled) {
       blockOutputBuffer = Utils.getTrimmed(conf, FS_COS, FS_ALT_KEYS, FAST_UPLOAD_BUFFER,
           DEFAULT_FAST_UPLOAD_BUFFER);
       partSize = COSUtils.ensureOutputParameterInRange(MULTIPART_SIZE, partSize);
+      maxPartSize = COSUtils.ensureOutputParameterInRange(MULTIPART_SIZE_MAX, maxPartSize);
+      uploadBufferPoolSize = Utils.getLong(conf, FS_COS, FS_ALT_KEYS,
+          FAST_UPLOAD_ARRAY_POOL_SIZE, DEFAULT_FAST_UPLOAD_ARRAY_POOL_SIZE);
+      uploadBufferPoolTimeout = Utils.getLong(conf, FS_COS, FS_ALT_KEYS,
+          FAST_UPLOAD_ARRAY_POOL_TIMEOUT, DEFAULT_FAST_UPLOAD_ARRAY_POOL_TIMEOUT);
       blockFactory = COSDataBlocks.createFactory(this, blockOutputBuffer);
-      blockOutputActiveBlocks = Utils.getInt(conf, FS_COS, FS_ALT_KEYS,
-          FAST_UPLOAD_ACTIVE_BLOCKS, DEFAULT_FAST_UPLOAD_ACTIVE_BLOCKS);
+      uploadContentMD5 = Utils.getBoolean(conf, FS_COS, FS_ALT_KEYS,
+          FAST_UPLOAD_CONTENT_MD5, DEFAULT_FAST_UPLOAD_CONTENT_MD5);
+      uploadAsyncClose = Utils.getBoolean(conf, FS_COS, FS_ALT_KEYS,
+          FAST_UPLOAD_ASYNC_CLOSE, DEFAULT_FAST_UPLOAD_ASYNC_CLOSE);
+      uploadScheduler = COSUploadScheduler.getInstance(Utils.getInt(conf, FS_COS,
+          FS_ALT_KEYS, FAST_UPLOAD_SCHEDULER_THREADS, DEFAULT_FAST_UPLOAD_SCHEDULER_THREADS));
       LOG.debug("Using COSBlockOutputStream with buffer = {}; block={};"
           + " queue limit={}",
           blockOutputBuffer, partSize, blockOutputActiveBlocks);
@@ -477,7 +660,23 @@ public class COSAPIClient implements IStoreClient {
   }
 
   @Override
-  public FileStatus getFileStatus(String hostName,
+  public FileStatus getFileStatus(final String hostName,
+      final Path f, final String msg) throws IOException, FileNotFoundException {
+    FileStatus cached = memoryCache.getFileStatus(f.toString());
+    if (cached != null) {
+      return cached;
+    }
+    // concurrent lookups of the same path share a single set of requests
+    String flightKey = writeGeneration.get() + ":" + f;
+    return fileStatusFlights.execute(flightKey, new Callable<FileStatus>() {
+      @Override
+      public FileStatus call() throws IOException {
+        return lookupFileStatus(hostName, f, msg);
+      }
+    });
+  }
+
+  private FileStatus lookupFileStatus(String hostName,
       Path f, String msg) throws IOException, FileNotFoundException {
     Path path = f;
     boolean originalTempTarget = false;
@@ -512,7 +711,24 @@ public class COSAPIClient implements IStoreClient {
     }
     String key = pathToKey(path);
     LOG.debug("getFileStatus: on original key {}", key);
+    if (negativeCache.isNotFound(key)) {
+      LOG.debug("Not found {} in negative cache. Throw FNF exception", path.toString());
+      throw new FileNotFoundException("Not found " + path.toString());
+    }
+    String originalKey = key;
+    long lookupGeneration = negativeCache.getGeneration();
     FileStatus fileStatus = null;
+    if (parallelProbe && !originalTempTarget && !key.isEmpty() && !key.endsWith("/")) {
+      fileStatus = probeFileStatus(key, path);
+      if (fileStatus != null) {
+        LOG.trace("getFileStatus(completed) {}", path);
+        memoryCache.putFileStatus(path.toString(), fileStatus);
+        return fileStatus;
+      }
+      LOG.debug("Not found {}. Throw FNF exception", path.toString());
+      negativeCache.putNotFound(originalKey, lookupGeneration);
+      throw new FileNotFoundException("Not found " + path.toString());
+    }
     try {
       fileStatus = getFileStatusKeyBased(key, path);
     } catch (AmazonS3Exception e) {
@@ -577,6 +793,7 @@ public class COSAPIClient implements IStoreClient {
       }
     }
     LOG.debug("Not found {}. Throw FNF exception", path.toString());
+    negativeCache.putNotFound(originalKey, lookupGeneration);
     throw new FileNotFoundException("Not found " + path.toString());
   }
 
@@ -586,6 +803,104 @@ public class COSAPIClient implements IStoreClient {
     if (cachedFS != null) {
       return cachedFS;
     }
+    FileStatus fs = headFileStatus(key, path);
+    memoryCache.putFileStatus(path.toString(), fs);
+    return fs;
+  }
+
+  /**
+   * Look a path up with HEAD key, HEAD key/ and a LIST of key/ issued
+   * concurrently. The results are taken in this order: the first probe
+   * finding the path wins and the later ones are cancelled, so a directory
+   * costs the latency of a single request instead of three.
+   *
+   * @param key object key, without trailing slash
+   * @param path the path
+   * @return the status, or null if the path does not exist
+   * @throws IOException if a probe failed
+   */
+  private FileStatus probeFileStatus(final String key, final Path path) throws IOException {
+    LOG.debug("getFileStatus: probing {}, {}/ and listing in parallel", key, key);
+    List<ListenableFuture<FileStatus>> probes = new ArrayList<>(3);
+    probes.add(probeExecutor.submit(new Callable<FileStatus>() {
+      @Override
+      public FileStatus call() throws IOException {
+        return headFileStatusIfExists(key, path);
+      }
+    }));
+    probes.add(probeExecutor.submit(new Callable<FileStatus>() {
+      @Override
+      public FileStatus call() throws IOException {
+        return headFileStatusIfExists(key + "/", path);
+      }
+    }));
+    probes.add(probeExecutor.submit(new Callable<FileStatus>() {
+      @Override
+      public FileStatus call() {
+        ListObjectsRequest request = new ListObjectsRequest();
+        request.setBucketName(mBucket);
+        request.setPrefix(key + "/");
+        request.withEncodingType("url");
+        request.setDelimiter("/");
+        request.setMaxKeys(1);
+        ObjectListing objects = mClient.listObjects(request);
+        if (!objects.getCommonPrefixes().isEmpty() || !objects.getObjectSummaries().isEmpty()) {
+          return new FileStatus(0, true, 1, 0, 0, path);
+        }
+        return null;
+      }
+    }));
+    try {
+      for (ListenableFuture<FileStatus> probe : probes) {
+        FileStatus fileStatus = probe.get();
+        if (fileStatus != null) {
+          return fileStatus;
+        }
+      }
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw (InterruptedIOException) new InterruptedIOException(
+          "Interrupted probing " + key).initCause(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException("Failed to probe " + key, cause);
+    } finally {
+      for (ListenableFuture<FileStatus> probe : probes) {
+        probe.cancel(true);
+      }
+    }
+  }
+
+  private FileStatus headFileStatusIfExists(String key, Path path) throws IOException {
+    try {
+      return headFileStatus(key, path);
+    } catch (AmazonS3Exception e) {
+      if (e.getStatusCode() != 404) {
+        LOG.warn("Throw IOException for {}. Most likely authentication failed", key);
+        throw new IOException(e);
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Get the status of an object with a HEAD request, without using the
+   * metadata cache
+   *
+   * @param key object key
+   * @param path path of the object
+   * @return the status
+   * @throws AmazonS3Exception if the request failed or the object does not
+   *         exist
+   */
+  private FileStatus headFileStatus(String key, Path path) throws AmazonS3Exception {
     ObjectMetadata meta = mClient.getObjectMetadata(mBucket, key);
     String sparkOrigin = meta.getUserMetaDataOf("data-origin");
     boolean stocatorCreated = false;
@@ -596,9 +911,9 @@ public class COSAPIClient implements IStoreClient {
       }
     }
     mCachedSparkOriginated.put(key, Boolean.valueOf(stocatorCreated));
-    FileStatus fs = createFileStatus(meta.getContentLength(), key, meta.getLastModified(), path);
+    FileStatus fs = createFileStatus(meta.getContentLength(), key, meta.getLastModified(),
+        meta.getETag(), path);
     LOG.trace("getFileStatusKeyBased: key {} fs.path {}", key, fs.getPath());
-    memoryCache.putFileStatus(path.toString(), fs);
     return fs;
   }
 
@@ -608,11 +923,11 @@ public class COSAPIClient implements IStoreClient {
     String objKey = objSummary.getKey();
     String newMergedPath = getMergedPath(hostName, path, objKey);
     return createFileStatus(objSummary.getSize(), objKey,
-        objSummary.getLastModified(), new Path(newMergedPath));
+        objSummary.getLastModified(), objSummary.getETag(), new Path(newMergedPath));
   }
 
   private FileStatus createFileStatus(long contentlength, String key,
-      Date lastModified, Path path) {
+      Date lastModified, String eTag, Path path) {
     if (objectRepresentsDirectory(key, contentlength)) {
       LOG.debug("createFileStatus: found exact file: fake directory {}", path.toString());
       return new FileStatus(0, true, 1, 0, 0, path);
@@ -622,7 +937,7 @@ public class COSAPIClient implements IStoreClient {
       if (lastModified != null) {
         fileModificationTime = lastModified.getTime();
       }
-      return new FileStatus(contentlength, false, 1, mBlockSize, fileModificationTime, path);
+      return new COSFileStatus(contentlength, fileModificationTime, path, mBlockSize, eTag);
     }
   }
 
@@ -683,8 +998,15 @@ public class COSAPIClient implements IStoreClient {
       throw new FileNotFoundException("Can't open " + path
           + " because it is a directory");
     }
+    String eTag = null;
+    if (fileStatus instanceof COSFileStatus) {
+      eTag = ((COSFileStatus) fileStatus).getETag();
+    }
     COSInputStream inputStream = new COSInputStream(mBucket, key,
-        fileStatus.getLen(), mClient, readAhead, inputPolicy, statistics);
+        fileStatus.getLen(), mClient, readAhead, inputPolicy, statistics,
+        threadPoolExecutor, prefetchBlocks, prefetchBlockSize,
+        vectoredReadMinSeek, vectoredReadMaxMergedSize,
+        footerCache, footerCacheLength, eTag, blockCache, readHedger, memoryBudget);
 
     return new FSDataInputStream(inputStream);
   }
@@ -699,13 +1021,17 @@ public class COSAPIClient implements IStoreClient {
       if (objName.startsWith(mBucket + "/")) {
         objNameWithoutBuket = objName.substring(mBucket.length() + 1);
       }
+      objectChanged(objNameWithoutBuket);
       if (blockUploadEnabled) {
         return new FSDataOutputStream(
             new COSBlockOutputStream(this,
                 objNameWithoutBuket,
-                new SemaphoredDelegatingExecutor(threadPoolExecutor,
+                new SemaphoredDelegatingExecutor(uploadScheduler.newStreamExecutor(),
                     blockOutputActiveBlocks, true),
+                uploadScheduler.getPriorityExecutor(),
                 partSize,
+                maxPartSize,
+                partSizeGrowthInterval,
                 blockFactory,
                 contentType,
                 new WriteOperationHelper(objNameWithoutBuket),
@@ -716,7 +1042,10 @@ public class COSAPIClient implements IStoreClient {
 
       if (!contentType.equals(Constants.APPLICATION_DIRECTORY)) {
         return new FSDataOutputStream(new COSOutputStream(mBucket, objName,
-            mClient, contentType, metadata, transfers, this), statistics);
+            mClient, contentType, metadata, transfers, this, multiPartThreshold, partSize,
+            maxPartSize, partSizeGrowthInterval,
+            new SemaphoredDelegatingExecutor(threadPoolExecutor, blockOutputActiveBlocks,
+                true)), statistics);
       } else {
         final InputStream im = new InputStream() {
           @Override
@@ -740,6 +1069,7 @@ public class COSAPIClient implements IStoreClient {
         PutObjectRequest putObjectRequest = new PutObjectRequest(mBucket, objName, im, om);
         Upload upload = transfers.upload(putObjectRequest);
         upload.waitForUploadResult();
+        objectChanged(objName);
         OutputStream fakeStream = new OutputStream() {
 
           @Override
@@ -809,6 +1139,7 @@ public class COSAPIClient implements IStoreClient {
     try {
       mClient.deleteObject(new DeleteObjectRequest(mBucket, key));
       memoryCache.removeFileStatus(path.toString());
+      objectChanged(key);
       return true;
     } catch (AmazonServiceException e) {
       if (e.getStatusCode() != 404) {
@@ -847,6 +1178,78 @@ public class COSAPIClient implements IStoreClient {
 
   }
 
+  /**
+   * Get the pages of a listing, from the listing cache if it was listed
+   * recently. When the listing cache is disabled the pages are fetched one at
+   * a time while they are iterated; otherwise all of them are fetched and
+   * cached.
+   *
+   * @param request the listing request
+   * @param key the listed key, used to correct the names of the objects
+   * @param flatListing whether the listing is flat
+   * @return the pages of the listing, at least one
+   */
+  private Iterator<ObjectListingPage> listPages(ListObjectsRequest request, String key,
+      boolean flatListing) {
+    if (!listingCache.isEnabled()) {
+      return fetchPages(request, key);
+    }
+    ListingCache.Key cacheKey = new ListingCache.Key(request.getPrefix(),
+        request.getDelimiter(), flatListing);
+    List<ObjectListingPage> pages = listingCache.get(cacheKey);
+    if (pages != null) {
+      LOG.debug("list: {} served from the listing cache", cacheKey);
+      return pages.iterator();
+    }
+    long listGeneration = listingCache.getGeneration();
+    pages = Lists.newArrayList(fetchPages(request, key));
+    listingCache.put(cacheKey, pages, listGeneration);
+    return pages.iterator();
+  }
+
+  /**
+   * Fetch the pages of a listing as they are iterated
+   *
+   * @param request the listing request
+   * @param key the listed key, used to correct the names of the objects
+   * @return the pages of the listing
+   */
+  private Iterator<ObjectListingPage> fetchPages(final ListObjectsRequest request,
+      final String key) {
+    return new AbstractIterator<ObjectListingPage>() {
+      private ObjectListing objectList;
+
+      @Override
+      protected ObjectListingPage computeNext() {
+        if (objectList == null) {
+          objectList = mClient.listObjects(request);
+        } else if (objectList.isTruncated()) {
+          objectList.setEncodingType("url");
+          objectList = mClient.listNextBatchOfObjects(objectList);
+        } else {
+          return endOfData();
+        }
+        for (S3ObjectSummary obj : objectList.getObjectSummaries()) {
+          obj.setKey(correctPlusSign(key, obj.getKey()));
+        }
+        return new ObjectListingPage(objectList.getObjectSummaries(),
+            objectList.getCommonPrefixes());
+      }
+    };
+  }
+
+  /**
+   * Forget the cached results made stale by an object written or deleted by
+   * this client
+   *
+   * @param key key of the object
+   */
+  void objectChanged(String key) {
+    writeGeneration.incrementAndGet();
+    negativeCache.invalidate(key);
+    listingCache.invalidate(key);
+  }
+
   private FileStatus[] internalList(String hostName, Path path, boolean fullListing,
       boolean prefixBased, Boolean isDirectory,
       boolean flatListing, PathFilter filter,
@@ -872,13 +1275,6 @@ public class COSAPIClient implements IStoreClient {
       request.setDelimiter("/");
     }
 
-    ObjectListing objectList = mClient.listObjects(request);
-
-    List<S3ObjectSummary> objectSummaries = objectList.getObjectSummaries();
-    List<String> commonPrefixes = objectList.getCommonPrefixes();
-
-    boolean objectScanContinue = true;
-    S3ObjectSummary prevObj = null;
     // start FTA logic
     boolean stocatorOrigin = isStocatorOrigin(key);
     if (stocatorOrigin) {
@@ -892,14 +1288,22 @@ public class COSAPIClient implements IStoreClient {
         return new FileStatus[0];
       }
     }
+
+    // the names of the objects are already corrected, and the summaries of a
+    // cached listing are shared: they must not be modified
+    Iterator<ObjectListingPage> pages = listPages(request, key, flatListing);
+    ObjectListingPage page = pages.next();
+    List<S3ObjectSummary> objectSummaries = page.summaries;
+    List<String> commonPrefixes = page.commonPrefixes;
+
+    boolean objectScanContinue = true;
+    S3ObjectSummary prevObj = null;
     while (objectScanContinue) {
       for (S3ObjectSummary obj : objectSummaries) {
         if (prevObj == null) {
           prevObj = obj;
-          prevObj.setKey(correctPlusSign(key, prevObj.getKey()));
           continue;
         }
-        obj.setKey(correctPlusSign(key, obj.getKey()));
         String objKey = obj.getKey();
         String unifiedObjectName = stocatorPath.removePartOrSuccess(objKey);
         LOG.trace("list candidate {}, unified name {}", objKey, unifiedObjectName);
@@ -983,12 +1387,10 @@ public class COSAPIClient implements IStoreClient {
           }
         }
       }
-      boolean isTruncated = objectList.isTruncated();
-      if (isTruncated) {
-        objectList.setEncodingType("url");
-        objectList = mClient.listNextBatchOfObjects(objectList);
-        objectSummaries = objectList.getObjectSummaries();
-        commonPrefixes = objectList.getCommonPrefixes();
+      if (pages.hasNext()) {
+        page = pages.next();
+        objectSummaries = page.summaries;
+        commonPrefixes = page.commonPrefixes;
       } else {
         objectScanContinue = false;
       }
@@ -1066,8 +1468,9 @@ public class COSAPIClient implements IStoreClient {
    *
    * @param objectKey
    * @return boolean if job is successful
+   * @throws IOException if the status could not be read
    */
-  private boolean isJobSuccessful(String objectKey) {
+  private boolean isJobSuccessful(String objectKey) throws IOException {
     LOG.trace("isJobSuccessful: for {}", objectKey);
     if (objectKey.endsWith("/")) {
       objectKey = objectKey.substring(0, objectKey.length() - 1);
@@ -1078,6 +1481,16 @@ public class COSAPIClient implements IStoreClient {
       LOG.trace("isJobSuccessful: {} found cached with value {}", objectKey, res);
       return res;
     }
+    final String jobKey = objectKey;
+    return jobStatusFlights.execute(jobKey, new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return readJobStatus(jobKey);
+      }
+    }).booleanValue();
+  }
+
+  private Boolean readJobStatus(String objectKey) {
     String key = getRealKey(objectKey);
     Path p = new Path(key, HADOOP_SUCCESS);
     ObjectMetadata statusMetadata = getObjectMetadata(p.toString());
@@ -1087,7 +1500,7 @@ public class COSAPIClient implements IStoreClient {
     }
     LOG.debug("isJobSuccessful: not cached {}. Status is {}. Update cache", objectKey, isJobOK);
     mCachedSparkJobsStatus.put(objectKey, isJobOK);
-    return isJobOK.booleanValue();
+    return isJobOK;
   }
 
   /**
@@ -1096,8 +1509,9 @@ public class COSAPIClient implements IStoreClient {
    *
    * @param objectKey the key of the object
    * @return boolean if object was created by Spark
+   * @throws IOException if the metadata could not be read
    */
-  private boolean isStocatorOrigin(String objectKey) {
+  private boolean isStocatorOrigin(String objectKey) throws IOException {
     LOG.debug("isStocatorOrigin: for {}", objectKey);
     if (objectKey.endsWith("/")) {
       objectKey = objectKey.substring(0, objectKey.length() - 1);
@@ -1109,6 +1523,16 @@ public class COSAPIClient implements IStoreClient {
           res);
       return res;
     }
+    final String originKey = objectKey;
+    return stocatorOriginFlights.execute(originKey, new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return readStocatorOrigin(originKey);
+      }
+    }).booleanValue();
+  }
+
+  private Boolean readStocatorOrigin(String objectKey) {
     String key = getRealKey(objectKey);
     Boolean sparkOriginated = Boolean.FALSE;
     ObjectMetadata objMetadata = getObjectMetadata(key);
@@ -1124,7 +1548,7 @@ public class COSAPIClient implements IStoreClient {
     mCachedSparkOriginated.put(key, sparkOriginated);
     LOG.debug("isStocatorOrigin: stocator origin for {} is {} non cached. Update cache", key,
         sparkOriginated.booleanValue());
-    return sparkOriginated.booleanValue();
+    return sparkOriginated;
   }
 
   private String getRealKey(String objectKey) {
@@ -1295,16 +1719,146 @@ public class COSAPIClient implements IStoreClient {
     transfers.setConfiguration(transferConfiguration);
   }
 
+  /**
+   * Get the maximum number of bytes of the pool of upload arrays.
+   *
+   * @return the size of the pool
+   */
+  long getUploadBufferPoolSize() {
+    return uploadBufferPoolSize;
+  }
+
+  /**
+   * Time a writer waits for the pool of upload arrays.
+   *
+   * @return the time in milliseconds, 0 to wait without limit
+   */
+  long getUploadBufferPoolTimeout() {
+    return uploadBufferPoolTimeout;
+  }
+
+  /**
+   * Whether block output streams defer the commit of their upload.
+   *
+   * @return true if close() returns before the upload is committed
+   */
+  boolean isUploadAsyncClose() {
+    return uploadAsyncClose;
+  }
+
+  /**
+   * Track the commit of a closed output stream running in the background;
+   * its failure is raised by {@link #waitForPendingUploads()}.
+   *
+   * @param future the commit, chained on the uploads of the stream
+   */
+  void deferUploadCommit(ListenableFuture<Void> future) {
+    LOG.debug("Deferring {}", future);
+    synchronized (pendingCommits) {
+      // forget the commits which succeeded, failures are kept for the barrier
+      Iterator<ListenableFuture<Void>> it = pendingCommits.iterator();
+      while (it.hasNext()) {
+        ListenableFuture<Void> pending = it.next();
+        if (pending.isDone() && !pending.isCancelled()) {
+          try {
+            pending.get();
+            it.remove();
+          } catch (InterruptedException | ExecutionException e) {
+            // kept
+          }
+        }
+      }
+      pendingCommits.add(future);
+    }
+  }
+
+  @Override
+  public void waitForPendingUploads() throws IOException {
+    List<ListenableFuture<Void>> pending;
+    synchronized (pendingCommits) {
+      pending = new ArrayList<>(pendingCommits);
+      pendingCommits.clear();
+    }
+    LOG.debug("Waiting for {} upload commits", pending.size());
+    IOException failure = null;
+    for (int i = 0; i < pending.size(); i++) {
+      try {
+        pending.get(i).get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        synchronized (pendingCommits) {
+          pendingCommits.addAll(pending.subList(i, pending.size()));
+        }
+        throw (InterruptedIOException) new InterruptedIOException(
+            "Interrupted waiting for upload commits").initCause(e);
+      } catch (ExecutionException e) {
+        IOException ioe = extractException("Deferred upload commit", mBucket, e);
+        if (failure == null) {
+          failure = ioe;
+        } else {
+          LOG.warn("Deferred upload commit failed", ioe);
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    LOG.debug("Closing {}: {} {} {} {} {} {} {} {}", mBucket, memoryCache, negativeCache,
+        listingCache, fileStatusFlights, uploadScheduler, memoryBudget, footerCache, blockCache);
+    try {
+      waitForPendingUploads();
+    } finally {
+      if (readHedger != null) {
+        readHedger.close();
+      }
+      if (probeExecutor != null) {
+        probeExecutor.shutdown();
+      }
+    }
+  }
+
+  /**
+   * Whether block uploads send the MD5 digest of their data.
+   *
+   * @return true if the digest is computed as the blocks are written
+   */
+  boolean isUploadContentMD5() {
+    return uploadContentMD5;
+  }
+
+  /**
+   * Get the JVM wide budget of the memory used to buffer data.
+   *
+   * @return the memory budget
+   */
+  COSMemoryBudget getMemoryBudget() {
+    return memoryBudget;
+  }
+
   public synchronized File createTmpFileForWrite(String pathStr) throws IOException {
     LOG.trace("createTmpFileForWrite {}", pathStr);
+    return getDirectoryAllocator().createTmpFileForWrite(pathStr,
+      COSLocalDirAllocator.SIZE_UNKNOWN, conf);
+  }
+
+  /**
+   * Get the allocator of the local buffer directories, creating it on first
+   * use.
+   *
+   * @return the allocator
+   */
+  private synchronized COSLocalDirAllocator getDirectoryAllocator() {
     if (directoryAllocator == null) {
       String bufferDirKey = bufferDirectory != null
           ? bufferDirectoryKey : "hadoop.tmp.dir";
       LOG.trace("Local buffer directorykey is {}", bufferDirKey);
       directoryAllocator = new COSLocalDirAllocator(bufferDirKey);
     }
-    return directoryAllocator.createTmpFileForWrite(pathStr,
-      COSLocalDirAllocator.SIZE_UNKNOWN, conf);
+    return directoryAllocator;
   }
 
   /**
@@ -1324,6 +1878,19 @@ public class COSAPIClient implements IStoreClient {
     }
   }
 
+  /**
+   * A page of an object listing.
+   */
+  private static final class ObjectListingPage {
+    private final List<S3ObjectSummary> summaries;
+    private final List<String> commonPrefixes;
+
+    private ObjectListingPage(List<S3ObjectSummary> summariesT, List<String> commonPrefixesT) {
+      summaries = summariesT;
+      commonPrefixes = commonPrefixesT;
+    }
+  }
+
   final class WriteOperationHelper {
     private final String key;
 
@@ -1362,6 +1929,7 @@ public class COSAPIClient implements IStoreClient {
      */
     void writeSuccessful() {
       LOG.debug("successful write");
+      objectChanged(key);
     }
 
     /**
@@ -1620,6 +2188,7 @@ public class COSAPIClient implements IStoreClient {
   private void copyFile(String srcKey, String dstKey, long size)
       throws IOException, InterruptedIOException, AmazonClientException {
     LOG.debug("copyFile {} -> {} ", srcKey, dstKey);
+    objectChanged(dstKey);
     CopyObjectRequest copyObjectRequest =
         new CopyObjectRequest(mBucket, srcKey, mBucket, dstKey);
     try {
@@ -1649,6 +2218,9 @@ public class COSAPIClient implements IStoreClient {
     } catch (AmazonClientException e) {
       throw translateException("copyFile(" + srcKey + ", " + dstKey + ")",
           srcKey, e);
+    } finally {
+      // a lookup made while the copy ran may have cached the old state
+      objectChanged(dstKey);
     }
   }
 
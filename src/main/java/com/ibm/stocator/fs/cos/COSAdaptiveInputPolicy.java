@@ -0,0 +1,86 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *  (C) Copyright IBM Corp. 2015, 2016
+ */
+
+package com.ibm.stocator.fs.cos;
+
+/**
+ * Seek history of a stream read with the adaptive input policy. It starts
+ * sequential and switches after {@link #SWITCH_THRESHOLD} consecutive
+ * accesses of the other kind. Seeks backwards or further than the readahead
+ * range count as random access; reads continuing where a bounded request
+ * ended count as sequential access. Any other read within the readahead
+ * range interrupts a run of random seeks.
+ */
+final class COSAdaptiveInputPolicy {
+
+  /**
+   * Number of consecutive accesses of the same kind needed to switch
+   * between sequential and random access.
+   */
+  static final int SWITCH_THRESHOLD = 2;
+
+  private COSInputPolicy policy = COSInputPolicy.Sequential;
+
+  /** Consecutive seeks backwards or beyond the readahead range. */
+  private int randomSeeks;
+
+  /** Consecutive reads continuing past the end of a bounded request. */
+  private int sequentialReopens;
+
+  /**
+   * Record the position of the next read
+   *
+   * @param targetPos position of the next read
+   * @param pos current position of the stream
+   * @param readahead readahead range of the stream
+   * @param requestEnded true if the read continues at the end of a bounded
+   *        request which ended before the end of the object
+   * @return true if the policy changed
+   */
+  boolean onRead(long targetPos, long pos, long readahead, boolean requestEnded) {
+    if (targetPos < pos || targetPos - pos > readahead) {
+      sequentialReopens = 0;
+      randomSeeks++;
+      return switchTo(COSInputPolicy.Random, randomSeeks);
+    }
+    randomSeeks = 0;
+    if (targetPos == pos && requestEnded) {
+      sequentialReopens++;
+      return switchTo(COSInputPolicy.Sequential, sequentialReopens);
+    }
+    return false;
+  }
+
+  private boolean switchTo(COSInputPolicy target, int count) {
+    if (count >= SWITCH_THRESHOLD && policy != target) {
+      policy = target;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return the policy of the next requests
+   */
+  COSInputPolicy getPolicy() {
+    return policy;
+  }
+
+  @Override
+  public String toString() {
+    return policy.toString();
+  }
+}
@@ -26,7 +26,6 @@ import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.amazonaws.AmazonClientException;
@@ -36,6 +35,9 @@ import com.amazonaws.services.s3.model.PartETag;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.PutObjectResult;
 import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
@@ -45,10 +47,9 @@ import org.slf4j.LoggerFactory;
 
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.classification.InterfaceStability;
-import org.apache.hadoop.io.retry.RetryPolicies;
-import org.apache.hadoop.io.retry.RetryPolicy;
 
 import static com.ibm.stocator.fs.common.Utils.closeAll;
+import static com.ibm.stocator.fs.cos.COSDataBlocks.DataBlock.DestState.Writing;
 import static com.ibm.stocator.fs.cos.COSUtils.translateException;
 import static com.ibm.stocator.fs.cos.COSUtils.extractException;
 
@@ -71,19 +72,26 @@ class COSBlockOutputStream extends OutputStream {
   /** Object being uploaded. */
   private final String key;
 
-  /** Size of all blocks. */
+  /** Size of the first blocks. */
   private final int blockSize;
 
+  /** Defer the wait for the uploads and the commit to the filesystem. */
+  private final boolean asyncClose;
+
+  /** Send the MD5 digest of each block, computed as it is written. */
+  private final boolean contentMD5;
+
+  /** Upper bound of the block size once it has grown. */
+  private final int maxBlockSize;
+
+  /** Number of blocks after which the block size doubles; 0 to disable. */
+  private final int blockSizeGrowthInterval;
+
   /** Callback for progress. */
   private final ListeningExecutorService executorService;
 
-  /**
-   * Retry policy for multipart commits; not all AWS SDK versions retry that.
-   */
-
-  private final RetryPolicy retryPolicy =
-      RetryPolicies.retryUpToMaximumCountWithProportionalSleep(5, 2000,
-      TimeUnit.MILLISECONDS);
+  /** Executor of the single PUT of a small object. */
+  private final ListeningExecutorService priorityExecutorService;
 
   /*
    * Object`s metadata
@@ -124,7 +132,12 @@ class COSBlockOutputStream extends OutputStream {
    * @param fsT COSAPIClient
    * @param keyT COS object to work on
    * @param executorServiceT the executor service to use to schedule work
-   * @param blockSizeT size of a single block
+   * @param priorityExecutorServiceT the executor service of the single PUT
+   *        of an object which fits in one block
+   * @param blockSizeT size of the first blocks
+   * @param maxBlockSizeT maximum size of a block once the size has grown
+   * @param blockSizeGrowthIntervalT number of blocks after which the block
+   *        size doubles, 0 for a fixed block size
    * @param blockFactoryT factory for creating stream destinations
    * @param contentTypeT contentType
    * @param writeOperationHelperT state of the write operation
@@ -132,7 +145,10 @@ class COSBlockOutputStream extends OutputStream {
    * @throws IOException on any problem
    */
   COSBlockOutputStream(COSAPIClient fsT, String keyT, ExecutorService executorServiceT,
+      ExecutorService priorityExecutorServiceT,
       long blockSizeT,
+      long maxBlockSizeT,
+      int blockSizeGrowthIntervalT,
       COSDataBlocks.BlockFactory blockFactoryT,
       String contentTypeT,
       COSAPIClient.WriteOperationHelper writeOperationHelperT,
@@ -143,12 +159,17 @@ class COSBlockOutputStream extends OutputStream {
     blockFactory = blockFactoryT;
     contentType = contentTypeT;
     blockSize = (int) blockSizeT;
+    maxBlockSize = (int) Math.max(blockSizeT, maxBlockSizeT);
+    blockSizeGrowthInterval = blockSizeGrowthIntervalT;
+    contentMD5 = fs.isUploadContentMD5();
+    asyncClose = fs.isUploadAsyncClose();
     mMetadata = metadata;
     writeOperationHelper = writeOperationHelperT;
     if (blockSize < COSConstants.MULTIPART_MIN_SIZE) {
       throw new IllegalArgumentException("Block size is too small: " + blockSize);
     }
     executorService = MoreExecutors.listeningDecorator(executorServiceT);
+    priorityExecutorService = MoreExecutors.listeningDecorator(priorityExecutorServiceT);
     multiPartUpload = null;
     // create that first block. This guarantees that an open + close sequence
     // writes a 0-byte entry.
@@ -166,16 +187,30 @@ class COSBlockOutputStream extends OutputStream {
   private synchronized COSDataBlocks.DataBlock createBlockIfNeeded() throws IOException {
     if (activeBlock == null) {
       blockCount++;
-      if (blockCount >= COSConstants.MAX_MULTIPART_COUNT) {
-        LOG.error("Number of partitions in stream exceeds limit for S3: "
-            + COSConstants.MAX_MULTIPART_COUNT
-            + " write may fail.");
+      if (blockCount == COSConstants.MAX_MULTIPART_COUNT + 1) {
+        LOG.error("Number of parts of {} exceeds the limit of {} parts, the upload will"
+            + " fail; increase {}{} or {}{}", key, COSConstants.MAX_MULTIPART_COUNT,
+            COSConstants.FS_COS, COSConstants.MULTIPART_SIZE, COSConstants.FS_COS,
+            COSConstants.MULTIPART_SIZE_MAX);
+      }
+      activeBlock = blockFactory.create(key, blockCount, getBlockSize(blockCount));
+      if (contentMD5) {
+        activeBlock.enableContentMD5();
       }
-      activeBlock = blockFactory.create(key, blockCount, blockSize);
     }
     return activeBlock;
   }
 
+  /**
+   * Size of a block, see {@link COSUtils#getPartSize}.
+   *
+   * @param index index of the block, starting at 1
+   * @return the size of the block
+   */
+  private int getBlockSize(long index) {
+    return (int) COSUtils.getPartSize(blockSize, maxBlockSize, blockSizeGrowthInterval, index);
+  }
+
   /**
    * Synchronized accessor to the active block.
    *
@@ -315,6 +350,10 @@ class COSBlockOutputStream extends OutputStream {
    * the upload has failed. Exceptions raised in this method are indicative that
    * the write has failed and data is at risk of being lost.
    *
+   * With asynchronous close enabled, the last block is queued for upload and
+   * the wait for the uploads and the commit are deferred to the filesystem;
+   * failures are then raised by {@link COSAPIClient#waitForPendingUploads()}.
+   *
    * @throws IOException on any failure
    */
   @Override
@@ -328,13 +367,14 @@ class COSBlockOutputStream extends OutputStream {
     boolean hasBlock = hasActiveBlock();
     LOG.debug("{}: Closing block #{}: current block= {}", this, blockCount,
         hasBlock ? block : "(none)");
+    Commit commit = null;
     try {
       if (multiPartUpload == null) {
         if (hasBlock) {
           // no uploads of data have taken place, put the single block up.
           // This must happen even if there is no data, so that 0 byte files
           // are created.
-          putObject();
+          commit = new Commit(putObject(), null);
         }
       } else {
         // there has already been at least one block scheduled for upload;
@@ -343,22 +383,102 @@ class COSBlockOutputStream extends OutputStream {
           // send last part
           uploadCurrentBlock();
         }
-        // wait for the partial uploads to finish
-        final List<PartETag> partETags = multiPartUpload.waitForAllPartUploads();
-        // then complete the operation
-        multiPartUpload.complete(partETags);
+        commit = new Commit(null, multiPartUpload);
+      }
+      if (commit != null && asyncClose) {
+        fs.deferUploadCommit(commit.start());
+        return;
       }
-      LOG.debug("Upload complete for {}", writeOperationHelper);
     } catch (IOException ioe) {
       writeOperationHelper.writeFailed(ioe);
       throw ioe;
     } finally {
-      closeAll(LOG, block, blockFactory);
-      closeAll(LOG);
+      // a block queued for upload is closed by its upload
+      if (block != null && (commit == null || block.getState() == Writing)) {
+        closeAll(LOG, block);
+      }
+      closeAll(LOG, blockFactory);
       clearActiveBlock();
     }
-    // All end of write operations, including deleting fake parent directories
-    writeOperationHelper.writeSuccessful();
+    if (commit != null) {
+      commit.call();
+    } else {
+      writeOperationHelper.writeSuccessful();
+    }
+  }
+
+  /**
+   * Wait for the uploads of the stream, complete the multipart upload if any,
+   * then run the end of write operations.
+   */
+  private final class Commit implements Callable<Void> {
+    private final ListenableFuture<PutObjectResult> putObjectResult;
+    private final MultiPartUpload upload;
+
+    private Commit(ListenableFuture<PutObjectResult> putObjectResultT,
+        MultiPartUpload uploadT) {
+      putObjectResult = putObjectResultT;
+      upload = uploadT;
+    }
+
+    @Override
+    public Void call() throws IOException {
+      try {
+        if (upload == null) {
+          waitForPutObject(putObjectResult);
+        } else {
+          // wait for the partial uploads to finish
+          final List<PartETag> partETags = upload.waitForAllPartUploads();
+          // then complete the operation
+          upload.complete(partETags);
+        }
+        LOG.debug("Upload complete for {}", writeOperationHelper);
+      } catch (IOException ioe) {
+        writeOperationHelper.writeFailed(ioe);
+        throw ioe;
+      }
+      // All end of write operations, including deleting fake parent directories
+      writeOperationHelper.writeSuccessful();
+      return null;
+    }
+
+    /**
+     * Chain the commit on the uploads of the stream, without waiting for
+     * them: the multipart upload is completed on the priority executor once
+     * its parts are uploaded, and aborted if any of them fails.
+     *
+     * @return the future of the commit
+     */
+    private ListenableFuture<Void> start() {
+      ListenableFuture<?> result = upload == null ? putObjectResult : upload.completeAsync();
+      ListenableFuture<Void> commit = Futures.transform(result, new Function<Object, Void>() {
+        @Override
+        public Void apply(Object ignored) {
+          LOG.debug("Upload complete for {}", writeOperationHelper);
+          writeOperationHelper.writeSuccessful();
+          return null;
+        }
+      }, MoreExecutors.directExecutor());
+      Futures.addCallback(commit, new FutureCallback<Void>() {
+        @Override
+        public void onSuccess(Void ignored) {
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          LOG.warn("Deferred upload of {} failed", key, t);
+          if (upload != null) {
+            upload.abortAsync();
+          }
+        }
+      }, MoreExecutors.directExecutor());
+      return commit;
+    }
+
+    @Override
+    public String toString() {
+      return "Commit{" + writeOperationHelper + "}";
+    }
   }
 
   /**
@@ -366,9 +486,10 @@ class COSBlockOutputStream extends OutputStream {
    * 0-byte PUT will be invoked, as it is needed to create an entry at the far
    * end.
    *
+   * @return the result of the upload
    * @throws IOException any problem
    */
-  private void putObject() throws IOException {
+  private ListenableFuture<PutObjectResult> putObject() throws IOException {
     LOG.debug("Executing regular upload for {}", writeOperationHelper);
 
     final COSDataBlocks.DataBlock block = getActiveBlock();
@@ -385,9 +506,10 @@ class COSBlockOutputStream extends OutputStream {
     } else {
       om.setContentType("application/octet-stream");
     }
+    om.setContentMD5(block.getContentMD5());
     putObjectRequest.setMetadata(om);
     ListenableFuture<PutObjectResult> putObjectResult =
-        executorService.submit(new Callable<PutObjectResult>() {
+        priorityExecutorService.submit(new Callable<PutObjectResult>() {
           @Override
           public PutObjectResult call() throws Exception {
             PutObjectResult result;
@@ -402,7 +524,17 @@ class COSBlockOutputStream extends OutputStream {
           }
         });
     clearActiveBlock();
-    // wait for completion
+    return putObjectResult;
+  }
+
+  /**
+   * Wait for the completion of a single PUT request.
+   *
+   * @param putObjectResult the result of the upload
+   * @throws IOException if the upload failed
+   */
+  private void waitForPutObject(ListenableFuture<PutObjectResult> putObjectResult)
+      throws IOException {
     try {
       putObjectResult.get();
     } catch (InterruptedException ie) {
@@ -464,24 +596,35 @@ class COSBlockOutputStream extends OutputStream {
       final UploadPartRequest request = writeOperationHelper.newUploadPartRequest(uploadId,
           currentPartNumber, size,
           uploadData.getUploadStream(), uploadData.getFile());
-
-      ListenableFuture<PartETag> partETagFuture = executorService.submit(new Callable<PartETag>() {
-        @Override
-        public PartETag call() throws Exception {
-          // this is the queued upload operation
-          LOG.debug("Uploading part {} for id '{}'", currentPartNumber, uploadId);
-          // do the upload
-          PartETag partETag;
-          try {
-            partETag = fs.uploadPart(request).getPartETag();
-            LOG.debug("Completed upload of {} to part {}", block, partETag.getETag());
-          } finally {
-            // close the stream and block
-            closeAll(LOG, uploadData, block);
-          }
-          return partETag;
-        }
-      });
+      request.setMd5Digest(block.getContentMD5());
+
+      // a failed attempt is resubmitted after its backoff delay instead of
+      // holding an upload thread; the block is kept until no attempt remains
+      ListenableFuture<PartETag> partETagFuture = COSRetryingTask.submit(
+          "upload of part " + currentPartNumber + " of " + key,
+          new Callable<PartETag>() {
+            @Override
+            public PartETag call() throws Exception {
+              LOG.debug("Uploading part {} for id '{}'", currentPartNumber, uploadId);
+              PartETag partETag = fs.uploadPart(request).getPartETag();
+              LOG.debug("Completed upload of {} to part {}", block, partETag.getETag());
+              return partETag;
+            }
+          },
+          new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws IOException {
+              return uploadData.rewind();
+            }
+          },
+          new Runnable() {
+            @Override
+            public void run() {
+              // close the stream and block
+              closeAll(LOG, uploadData, block);
+            }
+          },
+          executorService);
       partETagsFutures.add(partETagFuture);
     }
 
@@ -513,6 +656,62 @@ class COSBlockOutputStream extends OutputStream {
       }
     }
 
+    /**
+     * Complete the upload once all its parts are uploaded. The request is
+     * retried by {@link COSRetryingTask} on the priority executor, so no
+     * thread waits for the parts or sleeps between the attempts.
+     *
+     * @return the result of the commit
+     */
+    private ListenableFuture<CompleteMultipartUploadResult> completeAsync() {
+      return Futures.transformAsync(Futures.allAsList(partETagsFutures),
+          new AsyncFunction<List<PartETag>, CompleteMultipartUploadResult>() {
+            @Override
+            public ListenableFuture<CompleteMultipartUploadResult> apply(
+                final List<PartETag> partETags) {
+              return COSRetryingTask.submit(String.format("completing multi-part upload"
+                  + " for key '%s', id '%s'", key, uploadId),
+                  new Callable<CompleteMultipartUploadResult>() {
+                    @Override
+                    public CompleteMultipartUploadResult call() {
+                      return writeOperationHelper.completeMultipartUpload(uploadId,
+                          partETags);
+                    }
+                  }, null, null, priorityExecutorService);
+            }
+          }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Cancel the part uploads which have not started and abort the upload
+     * on the priority executor.
+     */
+    private void abortAsync() {
+      for (ListenableFuture<PartETag> future : partETagsFutures) {
+        future.cancel(false);
+      }
+      final String operation = String.format("aborting multi-part upload for key '%s',"
+          + " id '%s'", key, uploadId);
+      ListenableFuture<Void> abort = COSRetryingTask.submit(operation, new Callable<Void>() {
+        @Override
+        public Void call() {
+          writeOperationHelper.abortMultipartUpload(uploadId);
+          return null;
+        }
+      }, null, null, priorityExecutorService);
+      Futures.addCallback(abort, new FutureCallback<Void>() {
+        @Override
+        public void onSuccess(Void ignored) {
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          LOG.warn("Unable to abort multipart upload, you may need to purge "
+              + "uploaded parts", t);
+        }
+      }, MoreExecutors.directExecutor());
+    }
+
     /**
      * This completes a multipart upload. Sometimes it fails; here retries are
      * handled to avoid losing all data on a transient failure.
@@ -572,6 +771,8 @@ class COSBlockOutputStream extends OutputStream {
      * The method then sleeps for the sleep time suggested by the sleep policy;
      * if the sleep is interrupted then {@code Thread.interrupted()} is set to
      * indicate the thread was interrupted; then false is returned.
+     * It is only called by the thread committing the upload: the part
+     * uploads are retried by {@link COSRetryingTask} without sleeping.
      *
      * @param operation operation for log message
      * @param e exception raised
@@ -579,19 +780,17 @@ class COSBlockOutputStream extends OutputStream {
      * @return true if another attempt should be made
      */
     private boolean shouldRetry(String operation, AmazonClientException e, int retryCount) {
+      long delay = COSRetryingTask.getRetryDelay(e, retryCount);
+      if (delay < 0) {
+        return false;
+      }
+      LOG.info("Retrying {} after exception ", operation, e);
       try {
-        RetryPolicy.RetryAction retryAction = retryPolicy.shouldRetry(e, retryCount, 0, true);
-        boolean retry = retryAction == RetryPolicy.RetryAction.RETRY;
-        if (retry) {
-          LOG.info("Retrying {} after exception ", operation, e);
-          Thread.sleep(retryAction.delayMillis);
-        }
-        return retry;
+        Thread.sleep(delay);
+        return true;
       } catch (InterruptedException ex) {
         Thread.currentThread().interrupt();
         return false;
-      } catch (Exception ignored) {
-        return false;
       }
     }
   }
@@ -70,6 +70,73 @@ public class COSConstants {
   public static final String READAHEAD_RANGE = ".readahead.range";
   public static final long DEFAULT_READAHEAD_RANGE = 64 * 1024;
 
+  /**
+   * Number of blocks read ahead in parallel once sequential reads are
+   * detected. 0 disables prefetching
+   */
+  public static final String PREFETCH_BLOCKS = ".prefetch.blocks";
+  public static final int DEFAULT_PREFETCH_BLOCKS = 0;
+
+  public static final String PREFETCH_BLOCK_SIZE = ".prefetch.block.size";
+  public static final int DEFAULT_PREFETCH_BLOCK_SIZE = 8 * 1024 * 1024;
+
+  /**
+   * Vectored reads: ranges separated by at most this many bytes are
+   * fetched with a single request
+   */
+  public static final String VECTORED_READ_MIN_SEEK_SIZE = ".vectored.read.min.seek.size";
+  public static final int DEFAULT_VECTORED_READ_MIN_SEEK_SIZE = 4 * 1024;
+
+  /**
+   * Vectored reads: maximum size of a request covering merged ranges
+   */
+  public static final String VECTORED_READ_MAX_MERGED_SIZE = ".vectored.read.max.merged.size";
+  public static final int DEFAULT_VECTORED_READ_MAX_MERGED_SIZE = 1024 * 1024;
+
+  /**
+   * Size in bytes of the JVM wide cache of object footers. 0 disables it
+   */
+  public static final String FOOTER_CACHE_SIZE = ".footer.cache.size";
+  public static final long DEFAULT_FOOTER_CACHE_SIZE = 0;
+
+  /**
+   * Number of bytes at the end of an object fetched on open and cached
+   */
+  public static final String FOOTER_CACHE_LENGTH = ".footer.cache.length";
+  public static final int DEFAULT_FOOTER_CACHE_LENGTH = 64 * 1024;
+
+  /**
+   * Size in bytes of the local disk cache of object blocks, kept under the
+   * buffer directories. 0 disables it
+   */
+  public static final String BLOCK_CACHE_SIZE = ".block.cache.size";
+  public static final long DEFAULT_BLOCK_CACHE_SIZE = 0;
+
+  public static final String BLOCK_CACHE_BLOCK_SIZE = ".block.cache.block.size";
+  public static final int DEFAULT_BLOCK_CACHE_BLOCK_SIZE = 8 * 1024 * 1024;
+
+  /**
+   * Hedged reads: send a duplicate GET when the response of a request is
+   * slower than the given percentile of recent response times
+   */
+  public static final String HEDGED_READ = ".hedged.read";
+  public static final boolean DEFAULT_HEDGED_READ = false;
+
+  public static final String HEDGED_READ_PERCENTILE = ".hedged.read.percentile";
+  public static final double DEFAULT_HEDGED_READ_PERCENTILE = 95;
+
+  /**
+   * Hedged reads: minimal delay in milliseconds before a request is hedged
+   */
+  public static final String HEDGED_READ_MIN_DELAY = ".hedged.read.min.delay";
+  public static final long DEFAULT_HEDGED_READ_MIN_DELAY = 50;
+
+  /**
+   * Hedged reads: maximum percentage of the requests which may be hedged
+   */
+  public static final String HEDGED_READ_BUDGET = ".hedged.read.budget";
+  public static final double DEFAULT_HEDGED_READ_BUDGET = 5;
+
   public static final String SOCKET_TIMEOUT = ".connection.timeout";
   public static final int DEFAULT_SOCKET_TIMEOUT = 800000;
 
@@ -109,6 +176,33 @@ public class COSConstants {
   public static final String MULTIPART_SIZE = ".multipart.size";
   public static final long DEFAULT_MULTIPART_SIZE = 8388608; // 8 MB
 
+  // number of parts of a block upload after which the part size doubles;
+  // 0 keeps the part size fixed
+  public static final String MULTIPART_SIZE_GROWTH_INTERVAL = ".multipart.size.growth.interval";
+  public static final int DEFAULT_MULTIPART_SIZE_GROWTH_INTERVAL = 1000;
+
+  // upper bound of the part size of a block upload once it has grown
+  public static final String MULTIPART_SIZE_MAX = ".multipart.size.max";
+  public static final long DEFAULT_MULTIPART_SIZE_MAX = 268435456; // 256 MB
+
+  // issue HEAD key, HEAD key/ and LIST concurrently when the status of a
+  // path is not cached
+  public static final String FILE_STATUS_PARALLEL_PROBE = ".file.status.parallel.probe";
+  public static final boolean DEFAULT_FILE_STATUS_PARALLEL_PROBE = false;
+
+  // threads of the pool running the probes of the parallel file status lookups
+  public static final String FILE_STATUS_PARALLEL_PROBE_THREADS =
+      ".file.status.parallel.probe.threads";
+  public static final int DEFAULT_FILE_STATUS_PARALLEL_PROBE_THREADS = 6;
+
+  // time in milliseconds a listing is served from memory; 0 disables the cache
+  public static final String LIST_CACHE_TTL = ".list.cache.ttl";
+  public static final long DEFAULT_LIST_CACHE_TTL = 0;
+
+  // maximum number of objects and common prefixes held by the listing cache
+  public static final String LIST_CACHE_MAX_ENTRIES = ".list.cache.max.entries";
+  public static final long DEFAULT_LIST_CACHE_MAX_ENTRIES = 100000;
+
   // minimum size in bytes before we start a multipart uploads or copy
   public static final String MIN_MULTIPART_THRESHOLD = ".multipart.threshold";
   public static final long DEFAULT_MIN_MULTIPART_THRESHOLD = Integer.MAX_VALUE;
@@ -151,6 +245,7 @@ public class COSConstants {
   public static final String FAST_UPLOAD_BUFFER_ARRAY = "array";
   public static final String FAST_UPLOAD_BUFFER_DISK = "disk";
   public static final String FAST_UPLOAD_BYTEBUFFER = "bytebuffer";
+  public static final String FAST_UPLOAD_BUFFER_HYBRID = "hybrid";
 
   public static final String FAST_UPLOAD = ".fast.upload";
   public static final boolean DEFAULT_FAST_UPLOAD = false;
@@ -164,6 +259,56 @@ public class COSConstants {
       ".fast.upload.active.blocks";
   public static final int DEFAULT_FAST_UPLOAD_ACTIVE_BLOCKS = 4;
 
+  /**
+   * Maximum number of bytes held by the JVM wide pool of arrays used by the
+   * "array" upload buffer, and of direct buffers in use by the "bytebuffer"
+   * upload buffer; writers wait when it is exhausted
+   */
+  public static final String FAST_UPLOAD_ARRAY_POOL_SIZE =
+      ".fast.upload.array.pool.size";
+  public static final long DEFAULT_FAST_UPLOAD_ARRAY_POOL_SIZE = 512 * 1024 * 1024L;
+
+  /**
+   * Time in milliseconds a writer waits for the array pool before it
+   * allocates an array outside the pool; 0 waits without limit
+   */
+  public static final String FAST_UPLOAD_ARRAY_POOL_TIMEOUT =
+      ".fast.upload.array.pool.timeout";
+  public static final long DEFAULT_FAST_UPLOAD_ARRAY_POOL_TIMEOUT = 0;
+
+  /**
+   * Return from the close of a block output stream once its last block is
+   * queued; the wait for the uploads and the commit run in the background
+   * and their failures are raised when the filesystem is closed
+   */
+  public static final String FAST_UPLOAD_ASYNC_CLOSE = ".fast.upload.async.close";
+  public static final boolean DEFAULT_FAST_UPLOAD_ASYNC_CLOSE = false;
+
+  /**
+   * Compute the MD5 digest of each upload block while it is written and send
+   * it with the upload, so the service verifies the data without the client
+   * reading the block again
+   */
+  public static final String FAST_UPLOAD_CONTENT_MD5 = ".fast.upload.content.md5";
+  public static final boolean DEFAULT_FAST_UPLOAD_CONTENT_MD5 = true;
+
+  /**
+   * Number of threads of the JVM wide scheduler uploading the blocks of all
+   * the output streams
+   */
+  public static final String FAST_UPLOAD_SCHEDULER_THREADS =
+      ".fast.upload.scheduler.threads";
+  public static final int DEFAULT_FAST_UPLOAD_SCHEDULER_THREADS = 20;
+
+  /**
+   * Maximum number of bytes the JVM may use to buffer data in memory, shared
+   * by the upload blocks of all the output streams and the read ahead buffers
+   * of all the input streams. Writers wait when it is exhausted, readers stop
+   * buffering. 0 means no limit
+   */
+  public static final String MEMORY_BUDGET = ".memory.budget";
+  public static final long DEFAULT_MEMORY_BUDGET = 0;
+
   /** The minimum multipart size which COS supports. */
   public static final int MULTIPART_MIN_SIZE = 5 * 1024 * 1024;
   public static final int MAX_MULTIPART_COUNT = 10000;
@@ -184,9 +329,14 @@ public class COSConstants {
   public static final String FLAT_LISTING = ".flat.list";
   public static final boolean DEFAULT_FLAT_LISTING = true;
 
-  public static final String INPUT_FADVISE = "experimental.input.fadvise";
+  public static final String INPUT_FADVISE = ".experimental.input.fadvise";
   public static final String INPUT_FADV_NORMAL = "normal";
   public static final String INPUT_FADV_SEQUENTIAL = "sequential";
   public static final String INPUT_FADV_RANDOM = "random";
+  /**
+   * Start sequential and switch between random and sequential IO per
+   * stream, following its seek pattern
+   */
+  public static final String INPUT_FADV_ADAPTIVE = "adaptive";
 
 }
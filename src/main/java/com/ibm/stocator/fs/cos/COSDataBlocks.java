@@ -20,17 +20,35 @@ package com.ibm.stocator.fs.cos;
 
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.amazonaws.util.BinaryUtils;
 import com.google.common.base.Preconditions;
 
+import org.apache.hadoop.fs.FSExceptionMessages;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.util.DirectBufferPool;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -81,6 +99,10 @@ final class COSDataBlocks {
         return new ArrayBlockFactory(owner);
       case COSConstants.FAST_UPLOAD_BUFFER_DISK:
         return new DiskBlockFactory(owner);
+      case COSConstants.FAST_UPLOAD_BYTEBUFFER:
+        return new ByteBufferBlockFactory(owner);
+      case COSConstants.FAST_UPLOAD_BUFFER_HYBRID:
+        return new HybridBlockFactory(owner);
       default:
         throw new IllegalArgumentException("Unsupported block buffer"
             + " \"" + name + '"');
@@ -141,6 +163,24 @@ final class COSDataBlocks {
       return uploadStream;
     }
 
+    /**
+     * Prepare the data to be sent again after a failed upload.
+     * @return true if the data can be sent again
+     * @throws IOException if the stream could not be reset
+     */
+    boolean rewind() throws IOException {
+      if (file != null) {
+        // the SDK opens the file for every request
+        return true;
+      }
+      if (uploadStream.markSupported()) {
+        // the block streams are marked at their start
+        uploadStream.reset();
+        return true;
+      }
+      return false;
+    }
+
     /**
      * Close: closes any upload stream provided in the constructor.
      * @throws IOException inherited exception
@@ -158,78 +198,266 @@ final class COSDataBlocks {
    */
   static class ArrayBlockFactory extends BlockFactory {
 
+    private final ByteArrayPool pool;
+    private final COSMemoryBudget memoryBudget;
+    private final long poolTimeout;
+
     ArrayBlockFactory(COSAPIClient owner) {
       super(owner);
+      pool = ByteArrayPool.getInstance(owner.getUploadBufferPoolSize());
+      memoryBudget = owner.getMemoryBudget();
+      poolTimeout = owner.getUploadBufferPoolTimeout();
+    }
+
+    @Override
+    DataBlock create(String key, long index, int limit)
+        throws IOException {
+      memoryBudget.acquire(limit);
+      byte[] buffer;
+      try {
+        buffer = pool.acquire(limit, poolTimeout);
+      } catch (IOException e) {
+        memoryBudget.release(limit);
+        throw e;
+      }
+      if (buffer == null) {
+        // the arrays which would free the pool may belong to other streams
+        // of this very thread, so do not wait for them forever
+        LOG.warn("Upload buffer pool exhausted for {} ms, allocating block {} of {}"
+            + " outside the pool: {}", poolTimeout, index, key, pool);
+        return new ByteArrayBlock(index, limit, null, memoryBudget, new byte[limit]);
+      }
+      return new ByteArrayBlock(index, limit, pool, memoryBudget, buffer);
+    }
+
+  }
+
+  /**
+   * Keep blocks in heap arrays while the memory budget and the array pool
+   * have room for them, and spill the blocks which do not fit to files on
+   * local disk. Both kinds of blocks upload the same way, so the choice is
+   * made block by block without changing the upload order.
+   */
+  static class HybridBlockFactory extends BlockFactory {
+
+    private final ByteArrayPool pool;
+    private final COSMemoryBudget memoryBudget;
+    private final DiskBlockFactory diskBlockFactory;
+    private final AtomicLong memoryBlocks = new AtomicLong();
+    private final AtomicLong diskBlocks = new AtomicLong();
+
+    HybridBlockFactory(COSAPIClient owner) {
+      super(owner);
+      pool = ByteArrayPool.getInstance(owner.getUploadBufferPoolSize());
+      memoryBudget = owner.getMemoryBudget();
+      diskBlockFactory = new DiskBlockFactory(owner);
     }
 
     @Override
     DataBlock create(String key, long index, int limit)
         throws IOException {
-      return new ByteArrayBlock(0, limit);
+      if (memoryBudget.tryAcquire(limit)) {
+        byte[] buffer = pool.tryAcquire(limit);
+        if (buffer != null) {
+          memoryBlocks.incrementAndGet();
+          return new ByteArrayBlock(index, limit, pool, memoryBudget, buffer);
+        }
+        memoryBudget.release(limit);
+      }
+      LOG.debug("Spilling block {} of {} to disk: {}", index, key, memoryBudget);
+      diskBlocks.incrementAndGet();
+      return diskBlockFactory.create(key, index, limit);
     }
 
+    @Override
+    public String toString() {
+      return "HybridBlockFactory{memoryBlocks=" + memoryBlocks
+          + ", diskBlocks=" + diskBlocks + '}';
+    }
   }
 
-  static class COSByteArrayOutputStream extends ByteArrayOutputStream {
+  /**
+   * JVM wide pool of the byte arrays used by {@link ByteArrayBlock}.
+   * Arrays are leased by blocks and returned once their upload has
+   * completed, so they are reused instead of being reallocated for every
+   * block. The bytes of leased and idle arrays are bounded: when the pool is
+   * exhausted, writers wait for an array to be returned. A lease is always
+   * granted when no array is leased, so a single block larger than the pool
+   * can still be written.
+   */
+  static final class ByteArrayPool {
+    private static ByteArrayPool sInstance;
+
+    private final long maxBytes;
+    private final Map<Integer, Deque<byte[]>> idleArrays = new HashMap<>();
+    private long leasedBytes;
+    private long idleBytes;
 
-    COSByteArrayOutputStream(int size) {
-      super(size);
+    /**
+     * Get the JVM wide pool, shared by all the filesystems; the size is only
+     * used by the first call.
+     * @param maxBytes maximum number of bytes held by the pool
+     * @return the pool
+     */
+    static synchronized ByteArrayPool getInstance(long maxBytes) {
+      if (sInstance == null) {
+        sInstance = new ByteArrayPool(maxBytes);
+      } else if (sInstance.maxBytes != maxBytes) {
+        LOG.warn("Upload buffer pool already created with {} bytes, ignoring {} bytes",
+            sInstance.maxBytes, maxBytes);
+      }
+      return sInstance;
+    }
+
+    private ByteArrayPool(long maxBytesT) {
+      LOG.debug("Upload buffer pool initiated with size {}", maxBytesT);
+      maxBytes = maxBytesT;
     }
 
     /**
-     * InputStream backed by the internal byte array
-     *
-     * @return
+     * Lease an array, waiting while the pool is exhausted.
+     * @param size size of the array
+     * @param timeoutMillis maximum time to wait in milliseconds, 0 to wait
+     *        without limit
+     * @return the array, whose content is undefined, or null if the pool is
+     *         still exhausted after the timeout
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    synchronized byte[] acquire(int size, long timeoutMillis) throws InterruptedIOException {
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      while (true) {
+        byte[] array = tryAcquire(size);
+        if (array != null) {
+          return array;
+        }
+        LOG.debug("Upload buffer pool exhausted: {} bytes leased, waiting", leasedBytes);
+        try {
+          if (timeoutMillis <= 0) {
+            wait();
+          } else {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+              return null;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw (InterruptedIOException) new InterruptedIOException(
+              "Interrupted waiting for an upload buffer").initCause(e);
+        }
+      }
+    }
+
+    /**
+     * Lease an array if the pool is not exhausted, without waiting.
+     * @param size size of the array
+     * @return the array, or null if the pool is exhausted
+     */
+    synchronized byte[] tryAcquire(int size) {
+      Deque<byte[]> idle = idleArrays.get(size);
+      if (idle != null && !idle.isEmpty()) {
+        byte[] array = idle.pop();
+        idleBytes -= size;
+        leasedBytes += size;
+        return array;
+      }
+      // drop idle arrays of other sizes to make room
+      Iterator<Deque<byte[]>> it = idleArrays.values().iterator();
+      while (leasedBytes + idleBytes + size > maxBytes && it.hasNext()) {
+        Deque<byte[]> arrays = it.next();
+        while (!arrays.isEmpty() && leasedBytes + idleBytes + size > maxBytes) {
+          idleBytes -= arrays.pop().length;
+        }
+      }
+      if (leasedBytes == 0 || leasedBytes + idleBytes + size <= maxBytes) {
+        leasedBytes += size;
+        return new byte[size];
+      }
+      return null;
+    }
+
+    /**
+     * Return a leased array to the pool.
+     * @param array the array
      */
-    ByteArrayInputStream getInputStream() {
-      ByteArrayInputStream bin = new ByteArrayInputStream(buf, 0, count);
-      reset();
-      buf = null;
-      return bin;
+    synchronized void release(byte[] array) {
+      leasedBytes -= array.length;
+      if (leasedBytes + idleBytes + array.length <= maxBytes) {
+        Deque<byte[]> idle = idleArrays.get(array.length);
+        if (idle == null) {
+          idle = new ArrayDeque<>();
+          idleArrays.put(array.length, idle);
+        }
+        idle.push(array);
+        idleBytes += array.length;
+      }
+      notifyAll();
+    }
+
+    synchronized long getLeasedBytes() {
+      return leasedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+      return "ByteArrayPool{leasedBytes=" + leasedBytes
+          + ", idleBytes=" + idleBytes
+          + ", maxBytes=" + maxBytes + '}';
     }
   }
 
   /**
-   * Stream to memory via a {@code ByteArrayOutputStream}.
+   * Stream to a byte array on the heap, leased from the
+   * {@link ByteArrayPool} and returned to it when the block is closed.
    *
-   * This was taken from {@code S3AFastOutputStream} and has the
-   * same problem which surfaced there: it can consume a lot of heap space
-   * proportional to the mismatch between writes to the stream and
-   * the JVM-wide upload bandwidth to the S3 endpoint.
-   * The memory consumption can be limited by tuning the filesystem settings
-   * to restrict the number of queued/active uploads.
+   * The memory consumption is bounded by the pool and the JVM wide
+   * {@link COSMemoryBudget}; it can be limited further by tuning the
+   * filesystem settings to restrict the number of queued/active uploads.
    */
 
   static class ByteArrayBlock extends DataBlock {
-    private COSByteArrayOutputStream buffer;
+    private final ByteArrayPool pool;
+    private final COSMemoryBudget memoryBudget;
+    private byte[] buffer;
     private final int limit;
-    // cache data size so that it is consistent after the buffer is reset.
-    private Integer dataSize;
+    private int count;
 
+    /**
+     * @param index block index
+     * @param limitT limit of the block
+     * @param poolT pool the buffer is returned to on close, or null if it was
+     *        allocated outside the pool
+     * @param memoryBudgetT budget the limit was reserved from
+     * @param bufferT buffer leased from the pool
+     */
     ByteArrayBlock(long index,
-        int limitT) {
+        int limitT,
+        ByteArrayPool poolT,
+        COSMemoryBudget memoryBudgetT,
+        byte[] bufferT) {
       super(index);
       limit = limitT;
-      buffer = new COSByteArrayOutputStream(limit);
+      pool = poolT;
+      memoryBudget = memoryBudgetT;
+      buffer = bufferT;
       blockAllocated();
     }
 
     /**
-     * Get the amount of data; if there is no buffer then the size is 0.
+     * Get the amount of data written to the block.
      * @return the amount of data available to upload
      */
     @Override
     int dataSize() {
-      return dataSize != null ? dataSize : buffer.size();
+      return count;
     }
 
     @Override
     BlockUploadData startUpload() throws IOException {
       super.startUpload();
-      dataSize = buffer.size();
-      ByteArrayInputStream bufferData = buffer.getInputStream();
-      buffer = null;
-      return new BlockUploadData(bufferData);
+      // the array stays leased until the block is closed after the upload
+      return new BlockUploadData(new ByteArrayInputStream(buffer, 0, count));
     }
 
     @Override
@@ -246,13 +474,21 @@ final class COSDataBlocks {
     int write(byte[] b, int offset, int len) throws IOException {
       super.write(b, offset, len);
       int written = Math.min(remainingCapacity(), len);
-      buffer.write(b, offset, written);
+      System.arraycopy(b, offset, buffer, count, written);
+      count += written;
+      updateDigest(b, offset, written);
       return written;
     }
 
     @Override
     protected void innerClose() {
-      buffer = null;
+      if (buffer != null) {
+        if (pool != null) {
+          pool.release(buffer);
+        }
+        buffer = null;
+        memoryBudget.release(limit);
+      }
       blockReleased();
     }
 
@@ -262,10 +498,331 @@ final class COSDataBlocks {
           + "index=" + index
           + ", state=" + getState()
           + ", limit=" + limit
-          + ", dataSize=" + dataSize + '}';
+          + ", dataSize=" + count + '}';
     }
   }
 
+  // ====================================================================
+
+  /**
+   * Stream via Direct ByteBuffers; these are allocated off heap
+   * via {@link DirectBufferPool}.
+   * The pool only keeps weak references to the returned buffers, which the
+   * garbage collector may free; the buffers in use are bounded by a JVM wide
+   * budget of the size of the array pool, and by the memory budget.
+   */
+  static class ByteBufferBlockFactory extends BlockFactory {
+
+    private final DirectBufferPool bufferPool = new DirectBufferPool();
+    private final AtomicInteger buffersOutstanding = new AtomicInteger(0);
+    private final COSMemoryBudget memoryBudget;
+    private final COSMemoryBudget directBudget;
+
+    ByteBufferBlockFactory(COSAPIClient owner) {
+      super(owner);
+      memoryBudget = owner.getMemoryBudget();
+      directBudget = COSMemoryBudget.getDirectInstance(owner.getUploadBufferPoolSize());
+    }
+
+    @Override
+    ByteBufferBlock create(String key, long index, int limit)
+        throws IOException {
+      return new ByteBufferBlock(index, limit);
+    }
+
+    private ByteBuffer requestBuffer(int limit) throws InterruptedIOException {
+      LOG.debug("Requesting buffer of size {}", limit);
+      memoryBudget.acquire(limit);
+      try {
+        directBudget.acquire(limit);
+      } catch (InterruptedIOException e) {
+        memoryBudget.release(limit);
+        throw e;
+      }
+      buffersOutstanding.incrementAndGet();
+      return bufferPool.getBuffer(limit);
+    }
+
+    private void releaseBuffer(ByteBuffer buffer) {
+      LOG.debug("Releasing buffer");
+      int capacity = buffer.capacity();
+      bufferPool.returnBuffer(buffer);
+      buffersOutstanding.decrementAndGet();
+      directBudget.release(capacity);
+      memoryBudget.release(capacity);
+    }
+
+    /**
+     * Get count of outstanding buffers.
+     * @return the current buffer count
+     */
+    public int getOutstandingBufferCount() {
+      return buffersOutstanding.get();
+    }
+
+    @Override
+    public String toString() {
+      return "ByteBufferBlockFactory{"
+          + "buffersOutstanding=" + buffersOutstanding
+          + ", directBudget=" + directBudget
+          + '}';
+    }
+
+    /**
+     * A DataBlock which requests a buffer from pool on creation; returns
+     * it to the pool on close.
+     */
+    class ByteBufferBlock extends DataBlock {
+      private ByteBuffer blockBuffer;
+      private final int bufferSize;
+      // cache data size so that it is consistent after the buffer is reset.
+      private Integer dataSize;
+
+      /**
+       * Instantiate. This will request a ByteBuffer of the desired size.
+       * @param index block index
+       * @param bufferSizeT buffer size
+       * @throws InterruptedIOException if interrupted waiting for memory
+       */
+      ByteBufferBlock(long index, int bufferSizeT) throws InterruptedIOException {
+        super(index);
+        bufferSize = bufferSizeT;
+        blockBuffer = requestBuffer(bufferSizeT);
+        blockAllocated();
+      }
+
+      /**
+       * Get the amount of data; if there is no buffer then the size is 0.
+       * @return the amount of data available to upload
+       */
+      @Override
+      int dataSize() {
+        return dataSize != null ? dataSize : bufferCapacityUsed();
+      }
+
+      @Override
+      BlockUploadData startUpload() throws IOException {
+        super.startUpload();
+        dataSize = bufferCapacityUsed();
+        // set the buffer up from reading from the beginning
+        blockBuffer.limit(blockBuffer.position());
+        blockBuffer.position(0);
+        return new BlockUploadData(
+            new ByteBufferInputStream(dataSize, blockBuffer));
+      }
+
+      @Override
+      public boolean hasCapacity(long bytes) {
+        return bytes <= remainingCapacity();
+      }
+
+      @Override
+      public int remainingCapacity() {
+        return blockBuffer != null ? blockBuffer.remaining() : 0;
+      }
+
+      private int bufferCapacityUsed() {
+        return blockBuffer.capacity() - blockBuffer.remaining();
+      }
+
+      @Override
+      int write(byte[] b, int offset, int len) throws IOException {
+        super.write(b, offset, len);
+        int written = Math.min(remainingCapacity(), len);
+        blockBuffer.put(b, offset, written);
+        updateDigest(b, offset, written);
+        return written;
+      }
+
+      /**
+       * Closing the block will release the buffer.
+       */
+      @Override
+      protected void innerClose() {
+        if (blockBuffer != null) {
+          blockReleased();
+          releaseBuffer(blockBuffer);
+          blockBuffer = null;
+        }
+      }
+
+      @Override
+      public String toString() {
+        return "ByteBufferBlock{"
+            + "index=" + index
+            + ", state=" + getState()
+            + ", dataSize=" + dataSize()
+            + ", limit=" + bufferSize
+            + ", remainingCapacity=" + remainingCapacity()
+            + '}';
+      }
+    }
+  }
+
+  /**
+   * Provide an input stream from a byte buffer; supporting
+   * {@link #mark(int)}, which is required to enable replay of failed
+   * PUT attempts.
+   */
+  static class ByteBufferInputStream extends InputStream {
+
+    private final int size;
+    private ByteBuffer byteBuffer;
+    // as in ByteArrayInputStream, the stream is marked at its start
+    private int markPosition;
+
+    ByteBufferInputStream(int sizeT, ByteBuffer byteBufferT) {
+      LOG.debug("Creating ByteBufferInputStream of size {}", sizeT);
+      size = sizeT;
+      byteBuffer = byteBufferT;
+    }
+
+    /**
+     * After the stream is closed, set the local reference to the byte
+     * buffer to null; this guarantees that future attempts to use
+     * stream methods will fail.
+     */
+    @Override
+    public synchronized void close() {
+      LOG.debug("ByteBufferInputStream.close() of size {}", size);
+      byteBuffer = null;
+    }
+
+    /**
+     * @return true if the stream was closed
+     */
+    synchronized boolean isClosed() {
+      return byteBuffer == null;
+    }
+
+    /**
+     * Verify that the stream is open.
+     * @throws IOException if the stream is closed
+     */
+    private void verifyOpen() throws IOException {
+      if (byteBuffer == null) {
+        throw new IOException(FSExceptionMessages.STREAM_IS_CLOSED);
+      }
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+      if (available() > 0) {
+        return byteBuffer.get() & 0xFF;
+      } else {
+        return -1;
+      }
+    }
+
+    /**
+     * Read in data.
+     * @param b destination buffer
+     * @param offset offset within the buffer
+     * @param length length of bytes to read
+     * @return the number of bytes read, or -1 at the end of the stream
+     * @throws EOFException if the position is negative
+     * @throws IndexOutOfBoundsException if there isn't space for the
+     * amount of data requested
+     * @throws IllegalArgumentException other arguments are invalid
+     */
+    @SuppressWarnings("NullableProblems")
+    public synchronized int read(byte[] b, int offset, int length)
+        throws IOException {
+      Preconditions.checkArgument(length >= 0, "length is negative");
+      Preconditions.checkArgument(b != null, "Null buffer");
+      if (b.length - offset < length) {
+        throw new IndexOutOfBoundsException(
+            "TOO_MANY_BYTES_FOR_DEST_BUFFER"
+                + ": request length =" + length
+                + ", with offset =" + offset
+                + "; buffer capacity =" + (b.length - offset));
+      }
+      verifyOpen();
+      if (!hasRemaining()) {
+        return -1;
+      }
+
+      int toRead = Math.min(length, available());
+      try {
+        byteBuffer.get(b, offset, toRead);
+      } catch (BufferUnderflowException e) {
+        throw new EOFException(e.toString());
+      }
+      return toRead;
+    }
+
+    @Override
+    public synchronized long skip(long offset) throws IOException {
+      verifyOpen();
+      long oldPos = position();
+      long newPos = oldPos + offset;
+      if (newPos < 0) {
+        throw new EOFException(FSExceptionMessages.NEGATIVE_SEEK);
+      }
+      if (newPos > size) {
+        throw new EOFException(FSExceptionMessages.CANNOT_SEEK_PAST_EOF);
+      }
+      byteBuffer.position((int) newPos);
+      return newPos - oldPos;
+    }
+
+    @Override
+    public synchronized int available() {
+      Preconditions.checkState(byteBuffer != null,
+          FSExceptionMessages.STREAM_IS_CLOSED);
+      return byteBuffer.remaining();
+    }
+
+    /**
+     * Get the current buffer position.
+     * @return the buffer position
+     */
+    public synchronized int position() {
+      return byteBuffer.position();
+    }
+
+    /**
+     * Check if there is data left.
+     * @return true if there is data remaining in the buffer
+     */
+    public synchronized boolean hasRemaining() {
+      return byteBuffer.hasRemaining();
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+      LOG.debug("mark at {}", position());
+      markPosition = byteBuffer.position();
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+      LOG.debug("reset");
+      verifyOpen();
+      byteBuffer.position(markPosition);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return true;
+    }
+
+    @Override
+    public String toString() {
+      final StringBuilder sb = new StringBuilder(
+          "ByteBufferInputStream{");
+      sb.append("size=").append(size);
+      ByteBuffer buf = byteBuffer;
+      if (buf != null) {
+        sb.append(", available=").append(buf.remaining());
+      }
+      sb.append('}');
+      return sb.toString();
+    }
+  }
+
+  // ====================================================================
+
   /**
    * Buffer blocks to disk.
    */
@@ -297,6 +854,10 @@ final class COSDataBlocks {
   /**
    * Stream to a file.
    * This will stop at the limit; the caller is expected to create a new block.
+   * The upload hands the file itself to the request, so the SDK reads it in
+   * small chunks and keeps no heap copy of the block, even on a retry. The
+   * file is not memory mapped: unmapping needs JDK internals and a mapped
+   * write fails with SIGBUS instead of an IOException on a full disk.
    */
   static class DiskBlock extends DataBlock {
 
@@ -335,6 +896,7 @@ final class COSDataBlocks {
       int written = Math.min(remainingCapacity(), len);
       out.write(b, offset, written);
       bytesWritten += written;
+      updateDigest(b, offset, written);
       return written;
     }
 
@@ -415,6 +977,11 @@ final class COSDataBlocks {
       LOG.debug("block[{}]: closeBlock()", index);
       if (!closed.getAndSet(true)) {
         blockReleased();
+        if (out != null) {
+          // a block closed while still being written
+          IOUtils.closeStream(out);
+          out = null;
+        }
         if (!bufferFile.delete() && bufferFile.exists()) {
           LOG.warn("delete({}) returned false",
               bufferFile.getAbsoluteFile());
@@ -476,10 +1043,55 @@ final class COSDataBlocks {
     private volatile DestState state = Writing;
     protected final long index;
 
+    /**
+     * Running MD5 digest of the data written; null unless enabled.
+     */
+    private MessageDigest digest;
+
+    /**
+     * Base64 encoded MD5 digest of the data, set when the upload starts.
+     */
+    private String contentMD5;
+
     protected DataBlock(long indexT) {
       index = indexT;
     }
 
+    /**
+     * Compute the MD5 digest of the data as it is written, so that it is
+     * known when the upload starts. Must be called before any write.
+     */
+    void enableContentMD5() {
+      verifyState(Writing);
+      Preconditions.checkState(dataSize() == 0, "Data already written");
+      try {
+        digest = MessageDigest.getInstance("MD5");
+      } catch (NoSuchAlgorithmException e) {
+        // every Java platform provides MD5
+        throw new IllegalStateException(e);
+      }
+    }
+
+    /**
+     * Add written data to the digest, if enabled.
+     * @param buffer buffer
+     * @param offset offset of the data
+     * @param length number of bytes written
+     */
+    protected final void updateDigest(byte[] buffer, int offset, int length) {
+      if (digest != null) {
+        digest.update(buffer, offset, length);
+      }
+    }
+
+    /**
+     * Get the digest of the data; only set once the upload has started.
+     * @return the Base64 encoded MD5 digest, or null if it is not computed
+     */
+    String getContentMD5() {
+      return contentMD5;
+    }
+
     /**
      * Atomically enter a state, verifying current state.
      * @param current current state. null means "no check"
@@ -584,6 +1196,10 @@ final class COSDataBlocks {
     BlockUploadData startUpload() throws IOException {
       LOG.debug("Start datablock[{}] upload", index);
       enterState(Writing, Upload);
+      if (digest != null) {
+        contentMD5 = BinaryUtils.toBase64(digest.digest());
+        digest = null;
+      }
       return null;
     }
 
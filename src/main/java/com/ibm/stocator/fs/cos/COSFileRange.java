@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ibm.stocator.fs.cos;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A range of an object to be read by
+ * {@link COSInputStream#readVectored(List)}.
+ */
+public final class COSFileRange {
+
+  /**
+   * Orders ranges by offset.
+   */
+  private static final Comparator<COSFileRange> BY_OFFSET =
+      new Comparator<COSFileRange>() {
+        @Override
+        public int compare(COSFileRange a, COSFileRange b) {
+          return Long.compare(a.offset, b.offset);
+        }
+      };
+
+  private final long offset;
+  private final int length;
+
+  public COSFileRange(long offsetT, int lengthT) {
+    Preconditions.checkArgument(offsetT >= 0, "Negative offset %s", offsetT);
+    Preconditions.checkArgument(lengthT >= 0, "Negative length %s", lengthT);
+    offset = offsetT;
+    length = lengthT;
+  }
+
+  /**
+   * @return the offset of the first byte of the range
+   */
+  public long getOffset() {
+    return offset;
+  }
+
+  /**
+   * @return the number of bytes in the range
+   */
+  public int getLength() {
+    return length;
+  }
+
+  /**
+   * @return the offset following the last byte of the range
+   */
+  public long getEnd() {
+    return offset + length;
+  }
+
+  @Override
+  public String toString() {
+    return "range[" + offset + "-" + getEnd() + ")";
+  }
+
+  /**
+   * Sort the ranges by offset and merge neighbours into combined ranges
+   * which can each be fetched with a single request. Two ranges are merged
+   * when the gap between them is at most {@code minSeek} bytes and the
+   * merged range does not exceed {@code maxSize} bytes; a single range
+   * larger than {@code maxSize} is kept as it is.
+   *
+   * @param ranges ranges to merge; they must not overlap
+   * @param minSeek largest gap which is read through rather than skipped
+   * @param maxSize maximum size of a merged range
+   * @return the combined ranges, in ascending order of offset
+   * @throws IllegalArgumentException if two ranges overlap
+   */
+  public static List<CombinedFileRange> mergeRanges(List<COSFileRange> ranges,
+      int minSeek, int maxSize) {
+    List<COSFileRange> sorted = new ArrayList<>(ranges);
+    Collections.sort(sorted, BY_OFFSET);
+    List<CombinedFileRange> result = new ArrayList<>();
+    CombinedFileRange current = null;
+    for (COSFileRange range : sorted) {
+      if (current != null) {
+        Preconditions.checkArgument(range.offset >= current.end,
+            "Overlapping ranges %s and %s", current, range);
+        if (range.offset - current.end <= minSeek
+            && range.getEnd() - current.offset <= maxSize) {
+          current.append(range);
+          continue;
+        }
+      }
+      current = new CombinedFileRange(range);
+      result.add(current);
+    }
+    return result;
+  }
+
+  /**
+   * A range covering one or more requested ranges, fetched at once.
+   */
+  public static final class CombinedFileRange {
+    private final long offset;
+    private long end;
+    private final List<COSFileRange> underlying = new ArrayList<>();
+
+    private CombinedFileRange(COSFileRange first) {
+      offset = first.offset;
+      end = first.getEnd();
+      underlying.add(first);
+    }
+
+    private void append(COSFileRange range) {
+      underlying.add(range);
+      end = range.getEnd();
+    }
+
+    /**
+     * @return the offset of the first byte of the combined range
+     */
+    public long getOffset() {
+      return offset;
+    }
+
+    /**
+     * @return the number of bytes to fetch, including gaps
+     */
+    public int getLength() {
+      return (int) (end - offset);
+    }
+
+    /**
+     * @return the requested ranges covered by this range
+     */
+    public List<COSFileRange> getUnderlying() {
+      return Collections.unmodifiableList(underlying);
+    }
+
+    @Override
+    public String toString() {
+      return "combined range[" + offset + "-" + end + ") of "
+          + underlying.size() + " ranges";
+    }
+  }
+}
@@ -23,6 +23,7 @@ import org.apache.hadoop.fs.Path;
 
 public class COSFileStatus extends FileStatus {
   private boolean isEmptyDirectory;
+  private String eTag;
 
   /**
    * Handle directories
@@ -46,8 +47,23 @@ public class COSFileStatus extends FileStatus {
    */
   public COSFileStatus(long length, long modification_time, Path path,
       long blockSize) {
+    this(length, modification_time, path, blockSize, null);
+  }
+
+  /**
+   * Handle files with a known entity tag
+   *
+   * @param length file length
+   * @param modification_time modification time
+   * @param path path
+   * @param blockSize block size
+   * @param eTagT entity tag of the object, may be null
+   */
+  public COSFileStatus(long length, long modification_time, Path path,
+      long blockSize, String eTagT) {
     super(length, false, 1, blockSize, modification_time, path);
     isEmptyDirectory = false;
+    eTag = eTagT;
   }
 
   /**
@@ -59,6 +75,15 @@ public class COSFileStatus extends FileStatus {
     return isEmptyDirectory;
   }
 
+  /**
+   * Get the entity tag of the object
+   *
+   * @return the entity tag, or null if unknown
+   */
+  public String getETag() {
+    return eTag;
+  }
+
   /** Compare if this object is equal to another object
    *
    * @param   o the object to be compared
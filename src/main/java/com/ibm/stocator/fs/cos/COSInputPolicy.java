@@ -26,6 +26,7 @@ import org.slf4j.LoggerFactory;
 import static com.ibm.stocator.fs.cos.COSConstants.INPUT_FADV_NORMAL;
 import static com.ibm.stocator.fs.cos.COSConstants.INPUT_FADV_SEQUENTIAL;
 import static com.ibm.stocator.fs.cos.COSConstants.INPUT_FADV_RANDOM;
+import static com.ibm.stocator.fs.cos.COSConstants.INPUT_FADV_ADAPTIVE;
 import static com.ibm.stocator.fs.cos.COSConstants.INPUT_FADVISE;
 /**
  * Filesystem input policy.
@@ -35,7 +36,8 @@ public enum COSInputPolicy {
 
   Normal(INPUT_FADV_NORMAL),
   Sequential(INPUT_FADV_SEQUENTIAL),
-  Random(INPUT_FADV_RANDOM);
+  Random(INPUT_FADV_RANDOM),
+  Adaptive(INPUT_FADV_ADAPTIVE);
 
   private static final Logger LOG =
       LoggerFactory.getLogger(COSInputPolicy.class);
@@ -66,6 +68,8 @@ public enum COSInputPolicy {
         return Random;
       case INPUT_FADV_SEQUENTIAL:
         return Sequential;
+      case INPUT_FADV_ADAPTIVE:
+        return Adaptive;
       default:
         LOG.warn("Unrecognized " + INPUT_FADVISE + " value: \"{}\"", trimmed);
         return Normal;
@@ -20,6 +20,17 @@ package com.ibm.stocator.fs.cos;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,16 +38,26 @@ import org.slf4j.LoggerFactory;
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.ibm.stocator.fs.cache.FooterCache;
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.classification.InterfaceStability;
+import org.apache.hadoop.fs.ByteBufferReadable;
 import org.apache.hadoop.fs.CanSetReadahead;
+import org.apache.hadoop.fs.CanUnbuffer;
 import org.apache.hadoop.fs.FSExceptionMessages;
 import org.apache.hadoop.fs.FSInputStream;
 import org.apache.hadoop.fs.FileSystem.Statistics;
 
-public class COSInputStream extends FSInputStream implements CanSetReadahead {
+public class COSInputStream extends FSInputStream implements CanSetReadahead,
+    ByteBufferReadable, CanUnbuffer {
   /**
    * This is the public position; the one set in {@link #seek(long)}
    * and returned in {@link #getPos()}.
@@ -59,6 +80,12 @@ public class COSInputStream extends FSInputStream implements CanSetReadahead {
   private final COSInputPolicy inputPolicy;
   private long readahead = COSConstants.DEFAULT_READAHEAD_RANGE;
 
+  /**
+   * Seek history of the stream when the input policy is adaptive; it picks
+   * the policy of the new requests.
+   */
+  private final COSAdaptiveInputPolicy adaptivePolicy = new COSAdaptiveInputPolicy();
+
   /**
    * This is the actual position within the object, used by
    * lazy seek to decide whether to seek on the next read or not.
@@ -77,12 +104,169 @@ public class COSInputStream extends FSInputStream implements CanSetReadahead {
   private long contentRangeStart;
   private Statistics stats;
 
+  /**
+   * Executor used to fetch prefetch blocks; shared with the filesystem.
+   */
+  private final ListeningExecutorService executor;
+
+  /**
+   * Number of blocks kept in flight once sequential access is detected.
+   * Zero disables prefetching.
+   */
+  private final int prefetchBlockCount;
+
+  /**
+   * Size of a single prefetch block.
+   */
+  private final int prefetchBlockSize;
+
+  /**
+   * Blocks fetched or being fetched, in ascending order of offset.
+   */
+  private final Deque<PrefetchBlock> prefetchQueue = new ArrayDeque<>();
+
+  /**
+   * Position at which the last read finished; used to detect
+   * sequential access.
+   */
+  private long lastReadEnd = -1;
+
+  /**
+   * Number of bytes read back to back since the last non sequential read.
+   */
+  private long sequentialBytes;
+
+  /** Preallocated byte buffer for reading single bytes from prefetch. */
+  private final byte[] singleByteRead = new byte[1];
+
+  /**
+   * Size of the buffer used to copy data into direct byte buffers.
+   */
+  private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Buffer reused to copy data into direct byte buffers; allocated on first
+   * use.
+   */
+  private byte[] transferBuffer;
+
+  /**
+   * Largest gap between two ranges of a vectored read that is read
+   * through rather than issued as a separate request.
+   */
+  private final int vectoredReadMinSeek;
+
+  /**
+   * Maximum size of a merged range of a vectored read.
+   */
+  private final int vectoredReadMaxMergedSize;
+
+  /**
+   * Offset of the first byte of the object tail served from the footer
+   * cache.
+   */
+  private long tailStart;
+
+  /**
+   * The object tail, either taken from the footer cache or being fetched
+   * speculatively; null if the tail is not available.
+   */
+  private volatile ListenableFuture<byte[]> tail;
+
+  /**
+   * Entity tag of the object, may be null.
+   */
+  private final String eTag;
+
+  /**
+   * Local disk cache of object blocks; null if the cache is disabled or the
+   * entity tag of the object is unknown.
+   */
+  private final COSLocalBlockCache blockCache;
+
+  /**
+   * Last block read through the block cache, kept so the following reads of
+   * the block are served from memory even if the cache dropped it; guarded
+   * by heldBlockLock.
+   */
+  private byte[] heldBlock;
+  private long heldBlockStart = -1;
+  private final Object heldBlockLock = new Object();
+
+  /**
+   * Hedges slow GET requests; null if hedging is disabled.
+   */
+  private final COSReadHedger hedger;
+
+  /**
+   * JVM wide budget the prefetched blocks, the speculative tail, the blocks
+   * read through the block cache and the ranges of vectored reads being
+   * fetched are reserved from; null if buffering is not accounted.
+   */
+  private final COSMemoryBudget memoryBudget;
+
+  /**
+   * Number of bytes reserved for the speculative tail fetch, and the fetch
+   * holding them; the reservation outlives {@link #tail}, which is dropped
+   * when the fetch fails or the stream closes.
+   */
+  private int tailReserved;
+  private ListenableFuture<byte[]> tailFetch;
+
   public COSInputStream(String bucketT, String keyT,
       long contentLengthT,
       AmazonS3 clientT,
       long readahead,
       COSInputPolicy inputPolicyT,
       Statistics statisticsT) {
+    this(bucketT, keyT, contentLengthT, clientT, readahead, inputPolicyT,
+        statisticsT, null, 0, 0, COSConstants.DEFAULT_VECTORED_READ_MIN_SEEK_SIZE,
+        COSConstants.DEFAULT_VECTORED_READ_MAX_MERGED_SIZE, null, 0, null, null, null,
+        null);
+  }
+
+  /**
+   * Create the stream with optional prefetching.
+   *
+   * @param bucketT bucket name
+   * @param keyT object key
+   * @param contentLengthT length of the object
+   * @param clientT COS client
+   * @param readahead readahead range
+   * @param inputPolicyT input policy
+   * @param statisticsT filesystem statistics, may be null
+   * @param executorT executor for prefetch requests, may be null if
+   *        prefetching is disabled
+   * @param prefetchBlockCountT number of blocks to prefetch; 0 disables
+   * @param prefetchBlockSizeT size of each prefetched block
+   * @param vectoredReadMinSeekT largest gap merged by a vectored read
+   * @param vectoredReadMaxMergedSizeT maximum size of a merged range
+   * @param footerCache JVM wide footer cache, may be null
+   * @param footerLength number of bytes at the end of the object to serve
+   *        from the footer cache
+   * @param eTagT entity tag of the object, may be null
+   * @param blockCacheT local disk block cache, may be null
+   * @param hedgerT hedger of slow GET requests, may be null
+   * @param memoryBudgetT budget of the memory used by read buffers, may be
+   *        null
+   */
+  public COSInputStream(String bucketT, String keyT,
+      long contentLengthT,
+      AmazonS3 clientT,
+      long readahead,
+      COSInputPolicy inputPolicyT,
+      Statistics statisticsT,
+      ListeningExecutorService executorT,
+      int prefetchBlockCountT,
+      int prefetchBlockSizeT,
+      int vectoredReadMinSeekT,
+      int vectoredReadMaxMergedSizeT,
+      FooterCache footerCache,
+      int footerLength,
+      String eTagT,
+      COSLocalBlockCache blockCacheT,
+      COSReadHedger hedgerT,
+      COSMemoryBudget memoryBudgetT) {
     bucket = bucketT;
     key = keyT;
     contentLength = contentLengthT;
@@ -90,7 +274,65 @@ public class COSInputStream extends FSInputStream implements CanSetReadahead {
     uri = bucket + "/" + key;
     inputPolicy = inputPolicyT;
     stats = statisticsT;
+    executor = executorT;
+    prefetchBlockCount = executorT == null ? 0 : prefetchBlockCountT;
+    prefetchBlockSize = prefetchBlockSizeT;
+    Preconditions.checkArgument(prefetchBlockCount <= 0 || prefetchBlockSize > 0,
+        "Invalid prefetch block size %s", prefetchBlockSize);
+    vectoredReadMinSeek = vectoredReadMinSeekT;
+    vectoredReadMaxMergedSize = vectoredReadMaxMergedSizeT;
     setReadahead(readahead);
+    eTag = eTagT;
+    blockCache = eTag != null ? blockCacheT : null;
+    hedger = hedgerT;
+    memoryBudget = memoryBudgetT;
+    if (footerCache != null && eTag != null && footerLength > 0 && contentLength > 0) {
+      initTail(footerCache, (int) Math.min(footerLength, contentLength));
+    }
+  }
+
+  /**
+   * Take the tail of the object from the footer cache or, if it is not
+   * cached, start fetching it in the background and add it to the cache
+   * once fetched.
+   * @param footerCache the footer cache
+   * @param tailLength number of bytes in the tail
+   */
+  private void initTail(final FooterCache footerCache, final int tailLength) {
+    tailStart = contentLength - tailLength;
+    byte[] cachedTail = footerCache.getTail(bucket, key, eTag);
+    if (cachedTail != null && cachedTail.length == tailLength) {
+      LOG.debug("Footer of {} found in cache", uri);
+      tail = Futures.immediateFuture(cachedTail);
+    } else if (executor != null) {
+      if (memoryBudget != null) {
+        if (!memoryBudget.tryAcquire(tailLength)) {
+          LOG.debug("No memory to fetch the footer of {}: {}", uri, memoryBudget);
+          return;
+        }
+      }
+      LOG.debug("Speculative fetch of the last {} bytes of {}", tailLength, uri);
+      try {
+        tailFetch = executor.submit(new Callable<byte[]>() {
+          @Override
+          public byte[] call() throws Exception {
+            byte[] data = fetchRange(tailStart, tailLength);
+            footerCache.putTail(bucket, key, eTag, data);
+            return data;
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        LOG.debug("Unable to fetch the footer of {}", uri, e);
+        if (memoryBudget != null) {
+          memoryBudget.release(tailLength);
+        }
+        return;
+      }
+      if (memoryBudget != null) {
+        tailReserved = tailLength;
+      }
+      tail = tailFetch;
+    }
   }
 
   /**
@@ -108,7 +350,7 @@ public class COSInputStream extends FSInputStream implements CanSetReadahead {
       closeStream("reopen(" + reason + ")", contentRangeFinish, false);
     }
 
-    contentRangeFinish = calculateRequestLimit(inputPolicy, targetPos,
+    contentRangeFinish = calculateRequestLimit(getEffectivePolicy(), targetPos,
         length, contentLength, readahead);
     LOG.debug("reopen({}) for {} range[{}-{}], length={},"
         + " streamPosition={}, nextReadPosition={}",
@@ -117,7 +359,7 @@ public class COSInputStream extends FSInputStream implements CanSetReadahead {
     try {
       GetObjectRequest request = new GetObjectRequest(bucket, key)
           .withRange(targetPos, contentRangeFinish - 1);
-      wrappedStream = client.getObject(request).getObjectContent();
+      wrappedStream = getObject(request).getObjectContent();
       contentRangeStart = targetPos;
       if (wrappedStream == null) {
         throw new IOException("Null IO stream from reopen of (" + reason +  ") "
@@ -151,19 +393,11 @@ public class COSInputStream extends FSInputStream implements CanSetReadahead {
 
     // Lazy seek
     nextReadPos = targetPos;
-  }
-
-  /**
-   * Seek without raising any exception. This is for use in
-   * {@code finally} clauses
-   * @param positiveTargetPos a target position which must be positive
-   */
-  private void seekQuietly(long positiveTargetPos) {
-    try {
-      seek(positiveTargetPos);
-    } catch (IOException ioe) {
-      LOG.debug("Ignoring IOE on seek of {} to {}",
-          uri, positiveTargetPos, ioe);
+    if (!prefetchQueue.isEmpty() && (targetPos < prefetchQueue.peekFirst().start
+        || targetPos >= prefetchQueue.peekLast().end())) {
+      // the prefetched blocks will not be read
+      LOG.debug("Seek of {} to {} outside of the prefetched blocks", uri, targetPos);
+      cancelPrefetch();
     }
   }
 
@@ -243,6 +477,11 @@ public class COSInputStream extends FSInputStream implements CanSetReadahead {
    * @param len length of the content that needs to be read
    */
   private void lazySeek(long targetPos, long len) throws IOException {
+    if (inputPolicy == COSInputPolicy.Adaptive) {
+      adaptPolicy(targetPos);
+    }
+    // the read does not use the prefetched blocks
+    cancelPrefetch();
     //For lazy seek
     seekInStream(targetPos, len);
 
@@ -252,6 +491,26 @@ public class COSInputStream extends FSInputStream implements CanSetReadahead {
     }
   }
 
+  /**
+   * Update the adaptive policy with the position of the next read.
+   * @param targetPos position of the next read
+   */
+  private void adaptPolicy(long targetPos) {
+    boolean requestEnded = wrappedStream != null && remainingInCurrentRequest() <= 0
+        && contentRangeFinish < contentLength;
+    if (adaptivePolicy.onRead(targetPos, pos, readahead, requestEnded)) {
+      LOG.debug("Switching {} to {} IO", uri, adaptivePolicy);
+    }
+  }
+
+  /**
+   * @return the policy used for the next request: the configured one, or
+   *         the one chosen from the seek history for the adaptive policy
+   */
+  private COSInputPolicy getEffectivePolicy() {
+    return inputPolicy == COSInputPolicy.Adaptive ? adaptivePolicy.getPolicy() : inputPolicy;
+  }
+
   @Override
   public synchronized int read() throws IOException {
     checkNotClosed();
@@ -259,6 +518,15 @@ public class COSInputStream extends FSInputStream implements CanSetReadahead {
       return -1;
     }
 
+    if (readFromTail(singleByteRead, 0, 1) > 0
+        || readFromBlockCache(singleByteRead, 0, 1) > 0) {
+      return singleByteRead[0] & 0xFF;
+    }
+
+    if (usePrefetch() && readPrefetched(singleByteRead, 0, 1) > 0) {
+      return singleByteRead[0] & 0xFF;
+    }
+
     int byteRead;
     try {
       lazySeek(nextReadPos, 1);
@@ -274,6 +542,7 @@ public class COSInputStream extends FSInputStream implements CanSetReadahead {
       pos++;
       nextReadPos++;
       incrementBytesRead(1);
+      trackSequentialRead(1);
     }
 
     return byteRead;
@@ -301,6 +570,21 @@ public class COSInputStream extends FSInputStream implements CanSetReadahead {
       return -1;
     }
 
+    int cachedRead = readFromTail(buf, off, len);
+    if (cachedRead < 0) {
+      cachedRead = readFromBlockCache(buf, off, len);
+    }
+    if (cachedRead > 0) {
+      return cachedRead;
+    }
+
+    if (usePrefetch()) {
+      int bytesRead = readPrefetched(buf, off, len);
+      if (bytesRead >= 0) {
+        return bytesRead;
+      }
+    }
+
     try {
       lazySeek(nextReadPos, len);
     } catch (EOFException e) {
@@ -323,11 +607,404 @@ public class COSInputStream extends FSInputStream implements CanSetReadahead {
     if (bytesRead > 0) {
       pos += bytesRead;
       nextReadPos += bytesRead;
+      trackSequentialRead(bytesRead);
+    }
+    incrementBytesRead(bytesRead);
+    return bytesRead;
+  }
+
+  /**
+   * Positioned read which leaves the sequential state of the stream
+   * untouched: the data comes from the cached tail of the object or from an
+   * independent ranged GET, and the stream lock is not held, so concurrent
+   * positioned reads on one stream run in parallel.
+   * {@inheritDoc}
+   */
+  @Override
+  public int read(long position, byte[] buffer, int offset, int length)
+      throws IOException {
+    checkNotClosed();
+    validatePositionedReadArgs(position, buffer, offset, length);
+    if (length == 0) {
+      return 0;
+    }
+    if (position >= contentLength) {
+      return -1;
+    }
+    int bytesRead = readTailAt(position, buffer, offset, length);
+    if (bytesRead < 0) {
+      bytesRead = readBlockCacheAt(position, buffer, offset, length);
+    }
+    if (bytesRead > 0) {
+      return bytesRead;
+    }
+    bytesRead = (int) Math.min(length, contentLength - position);
+    readRange(position, buffer, offset, bytesRead);
+    incrementBytesRead(bytesRead);
+    return bytesRead;
+  }
+
+  /**
+   * Read into a byte buffer. Heap buffers are filled straight through their
+   * backing array; direct buffers are filled through a transfer buffer
+   * owned by the stream, so no array is allocated per read.
+   * {@inheritDoc}
+   */
+  @Override
+  public synchronized int read(ByteBuffer buf) throws IOException {
+    checkNotClosed();
+    if (!buf.hasRemaining()) {
+      return 0;
+    }
+    if (buf.hasArray()) {
+      int bytesRead = read(buf.array(), buf.arrayOffset() + buf.position(),
+          buf.remaining());
+      if (bytesRead > 0) {
+        buf.position(buf.position() + bytesRead);
+      }
+      return bytesRead;
+    }
+    if (transferBuffer == null) {
+      transferBuffer = new byte[TRANSFER_BUFFER_SIZE];
+    }
+    int bytesRead = read(transferBuffer, 0,
+        Math.min(buf.remaining(), transferBuffer.length));
+    if (bytesRead > 0) {
+      buf.put(transferBuffer, 0, bytesRead);
+    }
+    return bytesRead;
+  }
+
+  /**
+   * Record a read which finished at {@link #nextReadPos}, extending the
+   * current sequential run if it started where the previous read ended.
+   * @param bytesRead number of bytes just read
+   */
+  private void trackSequentialRead(long bytesRead) {
+    if (nextReadPos - bytesRead == lastReadEnd) {
+      sequentialBytes += bytesRead;
+    } else {
+      sequentialBytes = bytesRead;
+    }
+    lastReadEnd = nextReadPos;
+  }
+
+  /**
+   * Decide whether the next read should be served from prefetched blocks.
+   * Prefetching starts once at least {@link #readahead} bytes were read
+   * sequentially and continues while reads stay inside the prefetched
+   * window. It is never used with the random input policy.
+   * @return true if the read should use the prefetch queue
+   */
+  private boolean usePrefetch() {
+    if (prefetchBlockCount <= 0 || getEffectivePolicy() == COSInputPolicy.Random) {
+      return false;
+    }
+    if (!prefetchQueue.isEmpty()) {
+      if (nextReadPos >= prefetchQueue.peekFirst().start
+          && nextReadPos < prefetchQueue.peekLast().end()) {
+        return true;
+      }
+    }
+    return nextReadPos == lastReadEnd && sequentialBytes >= readahead;
+  }
+
+  /**
+   * Serve a read from the prefetch queue, (re)starting the queue at
+   * {@link #nextReadPos} if it does not cover that position.
+   * @param buf destination buffer
+   * @param off offset in the buffer
+   * @param len maximum number of bytes to read
+   * @return number of bytes read, or -1 if the memory budget does not
+   *         allow prefetching and the read must use the stream
+   * @throws IOException if the block could not be fetched
+   */
+  private int readPrefetched(byte[] buf, int off, int len)
+      throws IOException {
+    while (!prefetchQueue.isEmpty()
+        && prefetchQueue.peekFirst().end() <= nextReadPos) {
+      prefetchQueue.removeFirst().discard();
+    }
+    PrefetchBlock block = prefetchQueue.peekFirst();
+    if (block == null || nextReadPos < block.start) {
+      cancelPrefetch();
+      block = submitPrefetch(nextReadPos);
+      if (block == null) {
+        LOG.debug("No memory to prefetch {} at {}: {}", uri, nextReadPos, memoryBudget);
+        return -1;
+      }
+      LOG.debug("Sequential read of {} detected at {}: prefetching {} blocks of {}",
+          uri, nextReadPos, prefetchBlockCount, prefetchBlockSize);
+      // the data now comes from the prefetched blocks
+      closeStream("prefetch", contentRangeFinish, false);
+      prefetchQueue.add(block);
+    }
+    while (prefetchQueue.size() < prefetchBlockCount
+        && prefetchQueue.peekLast().end() < contentLength) {
+      PrefetchBlock next = submitPrefetch(prefetchQueue.peekLast().end());
+      if (next == null) {
+        break;
+      }
+      prefetchQueue.add(next);
+    }
+    block = prefetchQueue.peekFirst();
+    byte[] data = block.await();
+    int offsetInBlock = (int) (nextReadPos - block.start);
+    int bytesRead = Math.min(len, data.length - offsetInBlock);
+    System.arraycopy(data, offsetInBlock, buf, off, bytesRead);
+    nextReadPos += bytesRead;
+    trackSequentialRead(bytesRead);
+    incrementBytesRead(bytesRead);
+    return bytesRead;
+  }
+
+  /**
+   * Serve a read from the tail of the object if {@link #nextReadPos} is
+   * inside it, waiting for the speculative fetch if it is still running.
+   * @param buf destination buffer
+   * @param off offset in the buffer
+   * @param len maximum number of bytes to read
+   * @return number of bytes read, or -1 if the read must use the object
+   * @throws IOException if interrupted while waiting for the tail
+   */
+  private int readFromTail(byte[] buf, int off, int len) throws IOException {
+    int bytesRead = readTailAt(nextReadPos, buf, off, len);
+    if (bytesRead > 0) {
+      nextReadPos += bytesRead;
+      trackSequentialRead(bytesRead);
     }
+    return bytesRead;
+  }
+
+  /**
+   * Copy data at the given position from the tail of the object, if the
+   * position is inside it. This does not touch the state of the stream.
+   * @param position position of the first byte to read
+   * @param buf destination buffer
+   * @param off offset in the buffer
+   * @param len maximum number of bytes to read
+   * @return number of bytes read, or -1 if the tail does not hold the data
+   * @throws IOException if interrupted while waiting for the tail
+   */
+  private int readTailAt(long position, byte[] buf, int off, int len)
+      throws IOException {
+    ListenableFuture<byte[]> currentTail = tail;
+    if (currentTail == null || position < tailStart) {
+      return -1;
+    }
+    byte[] data;
+    try {
+      data = currentTail.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw (InterruptedIOException) new InterruptedIOException(
+          "Interrupted waiting for footer of " + uri).initCause(e);
+    } catch (ExecutionException e) {
+      LOG.debug("Failed to fetch footer of {}, reading from object", uri, e);
+      tail = null;
+      return -1;
+    }
+    int offsetInTail = (int) (position - tailStart);
+    int bytesRead = Math.min(len, data.length - offsetInTail);
+    System.arraycopy(data, offsetInTail, buf, off, bytesRead);
     incrementBytesRead(bytesRead);
     return bytesRead;
   }
 
+  /**
+   * Serve a read at {@link #nextReadPos} through the local block cache.
+   * @param buf destination buffer
+   * @param off offset in the buffer
+   * @param len maximum number of bytes to read
+   * @return number of bytes read, or -1 if the block cache is disabled
+   * @throws IOException if the block could not be fetched
+   */
+  private int readFromBlockCache(byte[] buf, int off, int len) throws IOException {
+    int bytesRead = readBlockCacheAt(nextReadPos, buf, off, len);
+    if (bytesRead > 0) {
+      nextReadPos += bytesRead;
+      trackSequentialRead(bytesRead);
+    }
+    return bytesRead;
+  }
+
+  /**
+   * Read data at the given position through the local block cache: the
+   * block holding the position is read whole from local disk, or fetched
+   * with its own GET request and added to the cache, then kept by the stream
+   * until another block is read. This does not touch the state of the
+   * stream.
+   * @param position position of the first byte to read
+   * @param buf destination buffer
+   * @param off offset in the buffer
+   * @param len maximum number of bytes to read
+   * @return number of bytes read, or -1 if the block cache is disabled or
+   *         the memory budget has no room for the block
+   * @throws IOException if the block could not be fetched
+   */
+  private int readBlockCacheAt(long position, byte[] buf, int off, int len)
+      throws IOException {
+    if (blockCache == null) {
+      return -1;
+    }
+    int blockSize = blockCache.getBlockSize();
+    long blockStart = position - position % blockSize;
+    byte[] data;
+    synchronized (heldBlockLock) {
+      data = heldBlockStart == blockStart ? heldBlock : null;
+    }
+    if (data == null) {
+      int length = (int) Math.min(blockSize, contentLength - blockStart);
+      if (memoryBudget != null && !memoryBudget.tryAcquire(length)) {
+        LOG.debug("No memory to read block of {} at {}: {}", uri, blockStart, memoryBudget);
+        return -1;
+      }
+      try {
+        String blockKey = COSLocalBlockCache.blockKey(bucket, key, eTag, blockStart);
+        data = blockCache.read(blockKey);
+        if (data == null) {
+          data = fetchRange(blockStart, length);
+          blockCache.put(blockKey, data);
+        }
+      } catch (IOException | RuntimeException e) {
+        if (memoryBudget != null) {
+          memoryBudget.release(length);
+        }
+        throw e;
+      }
+      holdBlock(blockStart, data);
+    }
+    int bytesRead = Math.min(len, data.length - (int) (position - blockStart));
+    System.arraycopy(data, (int) (position - blockStart), buf, off, bytesRead);
+    incrementBytesRead(bytesRead);
+    return bytesRead;
+  }
+
+  /**
+   * Keep a block read through the block cache, releasing the one kept
+   * before. A block read while the stream closes is released at once.
+   * @param blockStart offset of the block, or -1 to release the kept block
+   * @param data content of the block, reserved from the memory budget, or
+   *        null
+   */
+  private void holdBlock(long blockStart, byte[] data) {
+    byte[] previous;
+    synchronized (heldBlockLock) {
+      if (closed && data != null) {
+        // close() already released the kept block, it would never release this one
+        previous = data;
+      } else {
+        previous = heldBlock;
+        heldBlock = data;
+        heldBlockStart = blockStart;
+      }
+    }
+    if (previous != null && memoryBudget != null) {
+      memoryBudget.release(previous.length);
+    }
+  }
+
+  /**
+   * Schedule the asynchronous fetch of the block starting at the offset.
+   * @param start offset of the block
+   * @return the block, or null if the memory budget is exhausted
+   */
+  private PrefetchBlock submitPrefetch(final long start) {
+    final int length = (int) Math.min(prefetchBlockSize, contentLength - start);
+    if (memoryBudget != null && !memoryBudget.tryAcquire(length)) {
+      return null;
+    }
+    ListenableFuture<byte[]> future = executor.submit(new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws Exception {
+        return fetchRange(start, length);
+      }
+    });
+    return new PrefetchBlock(start, length, future);
+  }
+
+  /**
+   * Cancel and discard all prefetched blocks.
+   */
+  private void cancelPrefetch() {
+    for (PrefetchBlock block : prefetchQueue) {
+      block.data.cancel(true);
+      block.discard();
+    }
+    prefetchQueue.clear();
+  }
+
+  /**
+   * Issue a GET request, hedged if hedging is enabled.
+   * @param request the request
+   * @return the object
+   * @throws IOException if interrupted while waiting for a hedged request
+   */
+  private S3Object getObject(GetObjectRequest request) throws IOException {
+    if (hedger != null) {
+      return hedger.getObject(client, request);
+    }
+    return client.getObject(request);
+  }
+
+  /**
+   * Read a range of the object fully with its own GET request; this does
+   * not touch the state of the stream.
+   * @param start offset of the first byte
+   * @param length number of bytes to read
+   * @return the data
+   * @throws IOException on any failure to read the range
+   */
+  private byte[] fetchRange(long start, int length) throws IOException {
+    byte[] data = new byte[length];
+    readRange(start, data, 0, length);
+    return data;
+  }
+
+  /**
+   * Read a range of the object fully into a buffer with its own GET
+   * request; this does not touch the state of the stream.
+   * @param start offset of the first byte
+   * @param data destination buffer
+   * @param offset offset in the buffer
+   * @param length number of bytes to read
+   * @throws IOException on any failure to read the range
+   */
+  private void readRange(long start, byte[] data, int offset, int length)
+      throws IOException {
+    if (length == 0) {
+      return;
+    }
+    LOG.debug("fetchRange {} range[{}-{}]", uri, start, start + length);
+    S3ObjectInputStream in;
+    try {
+      GetObjectRequest request = new GetObjectRequest(bucket, key)
+          .withRange(start, start + length - 1);
+      in = getObject(request).getObjectContent();
+    } catch (AmazonClientException e) {
+      throw COSUtils.translateException("Read range at position " + start, uri, e);
+    }
+    boolean completed = false;
+    try {
+      int read = 0;
+      while (read < length) {
+        int n = in.read(data, offset + read, length - read);
+        if (n < 0) {
+          throw new EOFException("EOF_IN_READ_FULLY " + uri + " at "
+              + (start + read));
+        }
+        read += n;
+      }
+      completed = true;
+    } finally {
+      if (completed) {
+        in.close();
+      } else {
+        in.abort();
+      }
+    }
+  }
+
   /**
    * Handle an IOE on a read by attempting to re-open the stream.
    * The filesystem's readException count will be incremented.
@@ -366,6 +1043,21 @@ public class COSInputStream extends FSInputStream implements CanSetReadahead {
     if (!closed) {
       closed = true;
       try {
+        cancelPrefetch();
+        // a running footer fetch is left to complete and fill the cache; its
+        // memory is released once it is done
+        tail = null;
+        if (tailReserved > 0) {
+          final int reserved = tailReserved;
+          tailReserved = 0;
+          tailFetch.addListener(new Runnable() {
+            @Override
+            public void run() {
+              memoryBudget.release(reserved);
+            }
+          }, MoreExecutors.directExecutor());
+        }
+        holdBlock(-1, null);
         // close or abort the stream
         closeStream("close() operation", contentRangeFinish, false);
         // this is actually a no-op
@@ -376,6 +1068,16 @@ public class COSInputStream extends FSInputStream implements CanSetReadahead {
     }
   }
 
+  /**
+   * Release the HTTP connection held by the stream, draining or aborting it
+   * as on close. The position is kept and the next read reopens the object.
+   */
+  @Override
+  public synchronized void unbuffer() {
+    cancelPrefetch();
+    closeStream("unbuffer()", contentRangeFinish, false);
+  }
+
   /**
    * Close a stream: decide whether to abort or close, based on
    * the length of the stream and the current position.
@@ -522,6 +1224,9 @@ public class COSInputStream extends FSInputStream implements CanSetReadahead {
       sb.append(" wrappedStream=")
           .append(wrappedStream != null ? "open" : "closed");
       sb.append(" read policy=").append(inputPolicy);
+      if (inputPolicy == COSInputPolicy.Adaptive) {
+        sb.append(" (").append(adaptivePolicy).append(')');
+      }
       sb.append(" pos=").append(pos);
       sb.append(" nextReadPos=").append(nextReadPos);
       sb.append(" contentLength=").append(contentLength);
@@ -529,6 +1234,7 @@ public class COSInputStream extends FSInputStream implements CanSetReadahead {
       sb.append(" contentRangeFinish=").append(contentRangeFinish);
       sb.append(" remainingInCurrentRequest=")
           .append(remainingInCurrentRequest());
+      sb.append(" prefetchedBlocks=").append(prefetchQueue.size());
       sb.append('\n');
       sb.append('}');
       return sb.toString();
@@ -536,41 +1242,116 @@ public class COSInputStream extends FSInputStream implements CanSetReadahead {
   }
 
   /**
-   * Subclass {@code readFully()} operation which only seeks at the start
-   * of the series of operations; seeking back at the end.
-   *
-   * This is significantly higher performance if multiple read attempts are
-   * needed to fetch the data, as it does not break the HTTP connection.
-   *
-   * To maintain thread safety requirements, this operation is synchronized
-   * for the duration of the sequence.
+   * Positioned {@code readFully()} built on {@link #read(long, byte[], int, int)};
+   * it neither takes the stream lock nor moves the stream position.
    * {@inheritDoc}
-   *
    */
   @Override
   public void readFully(long position, byte[] buffer, int offset, int length)
       throws IOException {
     checkNotClosed();
     validatePositionedReadArgs(position, buffer, offset, length);
-    if (length == 0) {
-      return;
+    if (position + length > contentLength) {
+      throw new EOFException("EOF_IN_READ_FULLY " + uri + " position=" + position
+          + " length=" + length + " contentLength=" + contentLength);
     }
     int nread = 0;
-    synchronized (this) {
-      long oldPos = getPos();
-      try {
-        seek(position);
-        while (nread < length) {
-          int nbytes = read(buffer, offset + nread, length - nread);
-          if (nbytes < 0) {
-            throw new EOFException("EOF_IN_READ_FULLY");
+    while (nread < length) {
+      int nbytes = read(position + nread, buffer, offset + nread, length - nread);
+      if (nbytes < 0) {
+        throw new EOFException("EOF_IN_READ_FULLY");
+      }
+      nread += nbytes;
+    }
+  }
+
+  /**
+   * Read a list of ranges of the object. Ranges close to each other are
+   * merged and each merged range is fetched with its own GET request on the
+   * shared executor, so the reads run in parallel and neither use nor move
+   * the position of this stream.
+   *
+   * @param ranges ranges to read; they must not overlap
+   * @return one future per range, in the order of the ranges, holding the
+   *         data of the range
+   * @throws IOException if the stream is closed
+   * @throws EOFException if a range goes past the end of the object
+   */
+  public List<ListenableFuture<ByteBuffer>> readVectored(List<COSFileRange> ranges)
+      throws IOException {
+    checkNotClosed();
+    for (COSFileRange range : ranges) {
+      if (range.getEnd() > contentLength) {
+        throw new EOFException(FSExceptionMessages.CANNOT_SEEK_PAST_EOF
+            + " " + uri + " " + range + " length=" + contentLength);
+      }
+    }
+    List<COSFileRange.CombinedFileRange> combinedRanges = COSFileRange.mergeRanges(
+        ranges, vectoredReadMinSeek, vectoredReadMaxMergedSize);
+    LOG.debug("Vectored read of {}: {} ranges merged into {} requests", uri,
+        ranges.size(), combinedRanges.size());
+    ListeningExecutorService vectoredExecutor = executor != null
+        ? executor : MoreExecutors.newDirectExecutorService();
+    Map<COSFileRange, ListenableFuture<ByteBuffer>> results = new IdentityHashMap<>();
+    for (final COSFileRange.CombinedFileRange combined : combinedRanges) {
+      ListenableFuture<byte[]> data = submitVectored(vectoredExecutor, combined);
+      for (final COSFileRange range : combined.getUnderlying()) {
+        results.put(range, Futures.transform(data, new Function<byte[], ByteBuffer>() {
+          @Override
+          public ByteBuffer apply(byte[] bytes) {
+            int offset = (int) (range.getOffset() - combined.getOffset());
+            return ByteBuffer.wrap(bytes, offset, range.getLength()).slice();
           }
-          nread += nbytes;
+        }, MoreExecutors.directExecutor()));
+      }
+    }
+    List<ListenableFuture<ByteBuffer>> futures = new ArrayList<>(ranges.size());
+    for (COSFileRange range : ranges) {
+      futures.add(results.get(range));
+    }
+    return futures;
+  }
+
+  /**
+   * Schedule the fetch of a merged range of a vectored read. The memory of
+   * the range is reserved from the budget, waiting if needed, until the
+   * range is fetched; the data then belongs to the caller.
+   * @param vectoredExecutor executor of the request
+   * @param combined the merged range
+   * @return the data of the merged range
+   * @throws InterruptedIOException if interrupted while waiting for memory
+   */
+  private ListenableFuture<byte[]> submitVectored(ListeningExecutorService vectoredExecutor,
+      final COSFileRange.CombinedFileRange combined) throws InterruptedIOException {
+    final int length = combined.getLength();
+    if (memoryBudget != null) {
+      memoryBudget.acquire(length);
+    }
+    ListenableFuture<byte[]> data;
+    try {
+      data = vectoredExecutor.submit(new Callable<byte[]>() {
+        @Override
+        public byte[] call() throws Exception {
+          byte[] bytes = fetchRange(combined.getOffset(), length);
+          incrementBytesRead(bytes.length);
+          return bytes;
         }
-      } finally {
-        seekQuietly(oldPos);
+      });
+    } catch (RuntimeException e) {
+      if (memoryBudget != null) {
+        memoryBudget.release(length);
       }
+      throw e;
     }
+    if (memoryBudget != null) {
+      data.addListener(new Runnable() {
+        @Override
+        public void run() {
+          memoryBudget.release(length);
+        }
+      }, MoreExecutors.directExecutor());
+    }
+    return data;
   }
 
   @Override
@@ -621,6 +1402,7 @@ public class COSInputStream extends FSInputStream implements CanSetReadahead {
         rangeLimit = contentLength;
         break;
 
+      case Adaptive:
       case Normal:
       default:
         rangeLimit = contentLength;
@@ -657,4 +1439,56 @@ public class COSInputStream extends FSInputStream implements CanSetReadahead {
     }
   }
 
+  /**
+   * A block of the object fetched asynchronously.
+   */
+  private final class PrefetchBlock {
+    private final long start;
+    private final int length;
+    private final ListenableFuture<byte[]> data;
+
+    private PrefetchBlock(long startT, int lengthT, ListenableFuture<byte[]> dataT) {
+      start = startT;
+      length = lengthT;
+      data = dataT;
+    }
+
+    /**
+     * @return the absolute offset following the last byte of the block
+     */
+    private long end() {
+      return start + length;
+    }
+
+    /**
+     * Return the memory reserved for the block to the budget; called once
+     * the block leaves the queue.
+     */
+    private void discard() {
+      if (memoryBudget != null) {
+        memoryBudget.release(length);
+      }
+    }
+
+    /**
+     * Wait for the block to be fetched.
+     * @return the data of the block
+     * @throws IOException if the fetch failed or the wait was interrupted
+     */
+    private byte[] await() throws IOException {
+      try {
+        return data.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw (InterruptedIOException) new InterruptedIOException(
+            "Interrupted waiting for prefetch of " + uri).initCause(e);
+      } catch (ExecutionException e) {
+        if (prefetchQueue.remove(this)) {
+          discard();
+        }
+        throw COSUtils.extractException("Prefetch at position " + start, uri, e);
+      }
+    }
+  }
+
 }
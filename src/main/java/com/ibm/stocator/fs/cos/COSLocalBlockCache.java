@@ -0,0 +1,262 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *  (C) Copyright IBM Corp. 2015, 2016
+ */
+
+package com.ibm.stocator.fs.cos;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.LocalDirAllocator;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.ShutdownHookManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * JVM wide read-through cache of object blocks on local disk.
+ * Blocks are stored as files under the buffer directories, keyed by bucket,
+ * key, entity tag and offset of the block, and evicted in least recently
+ * used order once the cached bytes exceed the budget. The cache lives as
+ * long as the JVM; its files are removed on shutdown.
+ */
+public class COSLocalBlockCache {
+  private static final Logger LOG = LoggerFactory.getLogger(COSLocalBlockCache.class);
+  private static final int SHUTDOWN_HOOK_PRIORITY = 10;
+  private static COSLocalBlockCache sInstance;
+
+  private final LocalDirAllocator allocator;
+  private final Configuration conf;
+  private final long maxBytes;
+  private final int blockSize;
+  private final String cacheDirName = "stocator-block-cache-" + UUID.randomUUID();
+
+  /**
+   * Cached blocks in access order; guarded by this.
+   */
+  private final LinkedHashMap<String, CachedBlock> blocks =
+      new LinkedHashMap<>(16, 0.75f, true);
+  private long cachedBytes;
+
+  /**
+   * Cache directories created under the buffer directories.
+   */
+  private final Set<File> cacheDirs = Collections.synchronizedSet(new HashSet<File>());
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Get the JVM wide instance, shared by all the filesystems; the arguments
+   * are only used by the first call
+   *
+   * @param allocatorT allocator of the local directories
+   * @param confT configuration used by the allocator
+   * @param maxBytesT maximum number of bytes to keep on disk
+   * @param blockSizeT size of a cached block
+   * @return the cache
+   */
+  public static synchronized COSLocalBlockCache getInstance(LocalDirAllocator allocatorT,
+      Configuration confT, long maxBytesT, int blockSizeT) {
+    if (sInstance == null) {
+      sInstance = new COSLocalBlockCache(allocatorT, confT, maxBytesT, blockSizeT);
+      ShutdownHookManager.get().addShutdownHook(new Runnable() {
+        @Override
+        public void run() {
+          sInstance.clear();
+        }
+      }, SHUTDOWN_HOOK_PRIORITY);
+    } else if (sInstance.maxBytes != maxBytesT || sInstance.blockSize != blockSizeT) {
+      LOG.warn("Block cache already created with {} bytes in blocks of {} bytes,"
+          + " ignoring {} bytes in blocks of {} bytes", sInstance.maxBytes,
+          sInstance.blockSize, maxBytesT, blockSizeT);
+    }
+    return sInstance;
+  }
+
+  private COSLocalBlockCache(LocalDirAllocator allocatorT, Configuration confT,
+      long maxBytesT, int blockSizeT) {
+    LOG.debug("Local block cache initiated with size {} bytes, block size {}",
+        maxBytesT, blockSizeT);
+    allocator = allocatorT;
+    conf = confT;
+    maxBytes = maxBytesT;
+    blockSize = blockSizeT;
+  }
+
+  /**
+   * @return the size of a cached block
+   */
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  /**
+   * Build the key of a block
+   *
+   * @param bucket bucket name
+   * @param key object key
+   * @param eTag entity tag of the object
+   * @param blockStart offset of the block in the object
+   * @return the key of the block
+   */
+  public static String blockKey(String bucket, String key, String eTag, long blockStart) {
+    return bucket + "/" + key + "#" + eTag + "@" + blockStart;
+  }
+
+  /**
+   * Read a cached block whole, so the file is opened once per block rather
+   * than once per read
+   *
+   * @param blockKey key of the block
+   * @return the content of the block, or null if the block is not cached
+   */
+  public byte[] read(String blockKey) {
+    CachedBlock block;
+    synchronized (this) {
+      block = blocks.get(blockKey);
+    }
+    if (block == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    File file = block.file;
+    try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+      byte[] data = new byte[block.length];
+      in.readFully(data);
+      hits.incrementAndGet();
+      return data;
+    } catch (FileNotFoundException e) {
+      LOG.debug("Cached block {} was removed", blockKey);
+      remove(blockKey);
+    } catch (IOException e) {
+      LOG.warn("Failed to read cached block {} from {}", blockKey, file, e);
+      remove(blockKey);
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Add a block to the cache, evicting least recently used blocks if the
+   * cache is full. Failures are logged and ignored.
+   *
+   * @param blockKey key of the block
+   * @param data content of the block
+   */
+  public void put(String blockKey, byte[] data) {
+    if (data.length > maxBytes) {
+      return;
+    }
+    File file;
+    try {
+      Path path = allocator.getLocalPathForWrite(
+          cacheDirName + "/" + DigestUtils.sha256Hex(blockKey), data.length, conf);
+      file = new File(path.toUri().getPath());
+      cacheDirs.add(file.getParentFile());
+      File tmpFile = new File(file.getParentFile(), file.getName() + "." + UUID.randomUUID());
+      try (FileOutputStream out = new FileOutputStream(tmpFile)) {
+        out.write(data);
+      }
+      if (!tmpFile.renameTo(file)) {
+        LOG.debug("Failed to rename {} to {}", tmpFile, file);
+        deleteQuietly(tmpFile);
+        return;
+      }
+    } catch (IOException e) {
+      LOG.warn("Failed to cache block {}", blockKey, e);
+      return;
+    }
+    synchronized (this) {
+      // a key always maps to the same content, but maybe in another directory
+      CachedBlock previous = blocks.put(blockKey, new CachedBlock(file, data.length));
+      if (previous == null) {
+        cachedBytes += data.length;
+      } else if (!previous.file.equals(file)) {
+        deleteQuietly(previous.file);
+      }
+      Iterator<Map.Entry<String, CachedBlock>> it = blocks.entrySet().iterator();
+      while (cachedBytes > maxBytes && it.hasNext()) {
+        CachedBlock evicted = it.next().getValue();
+        it.remove();
+        cachedBytes -= evicted.length;
+        deleteQuietly(evicted.file);
+      }
+    }
+  }
+
+  private synchronized void remove(String blockKey) {
+    CachedBlock block = blocks.remove(blockKey);
+    if (block != null) {
+      cachedBytes -= block.length;
+      deleteQuietly(block.file);
+    }
+  }
+
+  /**
+   * Remove all the cached blocks and the cache directories
+   */
+  public synchronized void clear() {
+    LOG.debug("Clearing local block cache: {} hits {} misses", hits, misses);
+    blocks.clear();
+    cachedBytes = 0;
+    synchronized (cacheDirs) {
+      for (File dir : cacheDirs) {
+        FileUtil.fullyDelete(dir);
+      }
+      cacheDirs.clear();
+    }
+  }
+
+  private static void deleteQuietly(File file) {
+    if (!file.delete() && file.exists()) {
+      LOG.debug("Failed to delete {}", file);
+    }
+  }
+
+  @Override
+  public String toString() {
+    synchronized (this) {
+      return "COSLocalBlockCache{blocks=" + blocks.size() + " bytes=" + cachedBytes
+          + " maxBytes=" + maxBytes + " hits=" + hits + " misses=" + misses + "}";
+    }
+  }
+
+  /**
+   * A block stored on local disk.
+   */
+  private static final class CachedBlock {
+    private final File file;
+    private final int length;
+
+    private CachedBlock(File fileT, int lengthT) {
+      file = fileT;
+      length = lengthT;
+    }
+  }
+}
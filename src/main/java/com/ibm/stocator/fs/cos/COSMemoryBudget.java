@@ -0,0 +1,152 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *  (C) Copyright IBM Corp. 2015, 2016
+ */
+
+package com.ibm.stocator.fs.cos;
+
+import java.io.InterruptedIOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process wide accountant of the memory used to buffer data: upload blocks
+ * held in memory and read ahead buffers.
+ * Writers reserve memory with {@link #acquire(long)} and wait while the
+ * budget is exhausted; readers and the hybrid upload buffer use
+ * {@link #tryAcquire(long)} and fall back to the stream or to disk instead
+ * of waiting. A reservation is always granted when
+ * nothing is reserved, so a single buffer larger than the budget can still
+ * be used.
+ */
+public final class COSMemoryBudget {
+  private static final Logger LOG = LoggerFactory.getLogger(COSMemoryBudget.class);
+  private static COSMemoryBudget sInstance;
+  private static COSMemoryBudget sDirectInstance;
+
+  private final long maxBytes;
+  private long usedBytes;
+  private long peakBytes;
+  private int waitingWriters;
+  private long rejected;
+
+  /**
+   * Get the process wide budget, shared by all the filesystems of the JVM;
+   * the size is only used by the first call
+   *
+   * @param maxBytes maximum number of bytes, 0 or less for no limit
+   * @return the budget
+   */
+  public static synchronized COSMemoryBudget getInstance(long maxBytes) {
+    long limit = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+    if (sInstance == null) {
+      sInstance = new COSMemoryBudget(limit);
+    } else if (sInstance.maxBytes != limit) {
+      LOG.warn("Memory budget already set to {} bytes, ignoring {} bytes",
+          sInstance.maxBytes, maxBytes);
+    }
+    return sInstance;
+  }
+
+  /**
+   * Get the process wide budget of the direct buffers of the "bytebuffer"
+   * upload buffer, on top of {@link #getInstance(long)}; the size is only
+   * used by the first call
+   *
+   * @param maxBytes maximum number of bytes of direct buffers in use
+   * @return the budget
+   */
+  public static synchronized COSMemoryBudget getDirectInstance(long maxBytes) {
+    if (sDirectInstance == null) {
+      sDirectInstance = new COSMemoryBudget(maxBytes);
+    } else if (sDirectInstance.maxBytes != maxBytes) {
+      LOG.warn("Direct buffer budget already set to {} bytes, ignoring {} bytes",
+          sDirectInstance.maxBytes, maxBytes);
+    }
+    return sDirectInstance;
+  }
+
+  private COSMemoryBudget(long maxBytesT) {
+    LOG.debug("Memory budget initiated with {} bytes", maxBytesT);
+    maxBytes = maxBytesT;
+  }
+
+  /**
+   * Reserve memory, waiting while the budget is exhausted
+   *
+   * @param bytes number of bytes to reserve
+   * @throws InterruptedIOException if interrupted while waiting
+   */
+  public synchronized void acquire(long bytes) throws InterruptedIOException {
+    if (!canAcquire(bytes)) {
+      LOG.debug("Memory budget exhausted: {} of {} bytes used, waiting for {}",
+          usedBytes, maxBytes, bytes);
+      waitingWriters++;
+      try {
+        while (!canAcquire(bytes)) {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw (InterruptedIOException) new InterruptedIOException(
+            "Interrupted waiting for " + bytes + " bytes of memory").initCause(e);
+      } finally {
+        waitingWriters--;
+      }
+    }
+    reserve(bytes);
+  }
+
+  /**
+   * Reserve memory if the budget allows it, without waiting
+   *
+   * @param bytes number of bytes to reserve
+   * @return true if the memory was reserved
+   */
+  public synchronized boolean tryAcquire(long bytes) {
+    if (!canAcquire(bytes)) {
+      rejected++;
+      return false;
+    }
+    reserve(bytes);
+    return true;
+  }
+
+  /**
+   * Release memory reserved earlier
+   *
+   * @param bytes number of bytes to release
+   */
+  public synchronized void release(long bytes) {
+    usedBytes -= bytes;
+    notifyAll();
+  }
+
+  private boolean canAcquire(long bytes) {
+    return usedBytes == 0 || usedBytes + bytes <= maxBytes;
+  }
+
+  private void reserve(long bytes) {
+    usedBytes += bytes;
+    peakBytes = Math.max(peakBytes, usedBytes);
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "COSMemoryBudget{usedBytes=" + usedBytes + " peakBytes=" + peakBytes
+        + " maxBytes=" + maxBytes + " waitingWriters=" + waitingWriters
+        + " rejected=" + rejected + "}";
+  }
+}
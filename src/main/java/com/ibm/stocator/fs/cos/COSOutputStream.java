@@ -26,18 +26,34 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.apache.hadoop.io.IOUtils;
+
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.transfer.Upload;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.PartETag;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.UploadPartRequest;
 import com.amazonaws.services.s3.transfer.TransferManager;
 import com.amazonaws.AmazonClientException;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
 
 public class COSOutputStream extends OutputStream {
   /*
@@ -64,13 +80,18 @@ public class COSOutputStream extends OutputStream {
    */
   private Map<String, String> mMetadata;
   /*
-   * Output stream
+   * Output stream of the current part file
+   */
+  private OutputStream mBackupOutputStream;
+  /*
+   * Temporal output file (output stream is buffered by it). Once the multipart
+   * upload started, it only holds the current part.
    */
-  private final OutputStream mBackupOutputStream;
+  private File mBackupFile;
   /*
-   * Temporal output file (output stream is buffered by it)
+   * Number of bytes written to the current file
    */
-  private final File mBackupFile;
+  private long mBackupFileBytes;
   /*
    * Closed bit. Updates must be in a synchronized block to guarantee an atomic
    * check and set
@@ -84,6 +105,60 @@ public class COSOutputStream extends OutputStream {
    * COSAPIclient
    */
   private final COSAPIClient fs;
+  /*
+   * COS client
+   */
+  private final AmazonS3 mClient;
+  /*
+   * Size of the second part
+   */
+  private final long mPartSize;
+  /*
+   * Maximum size of a part once the part size has grown
+   */
+  private final long mMaxPartSize;
+  /*
+   * Number of parts after which the part size doubles, 0 for a fixed size
+   */
+  private final int mPartSizeGrowthInterval;
+  /*
+   * Size of the current part: the multipart threshold for the first part,
+   * then the part size
+   */
+  private long mPartLimit;
+  /*
+   * Executor uploading the parts
+   */
+  private final ListeningExecutorService mExecutor;
+  /*
+   * Multipart upload ID, null until the first part is uploaded
+   */
+  private String mUploadId;
+  /*
+   * Set once the multipart upload is aborted
+   */
+  private boolean mAborted;
+  /*
+   * First failure of a write; the stream can only be closed after it
+   */
+  private IOException mFailure;
+  /*
+   * Uploads of the parts, in part number order
+   */
+  private final List<ListenableFuture<PartETag>> mPartUploads = new ArrayList<>();
+  /*
+   * Part files whose upload completed, ready to be truncated and reused;
+   * guarded by itself
+   */
+  private final Deque<File> mFreeFiles = new ArrayDeque<>();
+  /*
+   * Number of part files still used by an upload; guarded by mFreeFiles
+   */
+  private int mUploadingFiles;
+  /*
+   * All the part files created by this stream
+   */
+  private final List<File> mPartFiles = new ArrayList<>();
 
   /**
    * Constructor for an output stream of an object in COS
@@ -95,15 +170,30 @@ public class COSOutputStream extends OutputStream {
    * @param metadata the object`s metadata
    * @param transfersT TransferManager
    * @param fsT COSAPIClient
+   * @param thresholdT number of bytes written before the multipart upload
+   *        starts
+   * @param partSizeT size of the second part
+   * @param maxPartSizeT maximum size of a part once the part size has grown
+   * @param partSizeGrowthIntervalT number of parts after which the part size
+   *        doubles, 0 for a fixed part size
+   * @param executorT executor uploading the parts
    *
    * @throws IOException if error
    */
   public COSOutputStream(String bucketName, String key, AmazonS3 client, String contentType,
       Map<String, String> metadata, TransferManager transfersT,
-      COSAPIClient fsT) throws IOException {
+      COSAPIClient fsT, long thresholdT, long partSizeT, long maxPartSizeT,
+      int partSizeGrowthIntervalT, ListeningExecutorService executorT)
+      throws IOException {
     mBucketName = bucketName;
     transfers = transfersT;
     fs = fsT;
+    mClient = client;
+    mPartLimit = Math.max(thresholdT, COSConstants.MULTIPART_MIN_SIZE);
+    mPartSize = Math.max(partSizeT, COSConstants.MULTIPART_MIN_SIZE);
+    mMaxPartSize = maxPartSizeT;
+    mPartSizeGrowthInterval = partSizeGrowthIntervalT;
+    mExecutor = executorT;
     // Remove the bucket name prefix from key path
     if (key.startsWith(bucketName + "/")) {
       mKey = key.substring(bucketName.length() + 1);
@@ -113,8 +203,7 @@ public class COSOutputStream extends OutputStream {
     mContentType = contentType;
     mMetadata = metadata;
     try {
-      String tmpPrefix = (key.replaceAll("/", "-")).replaceAll(":", "-");
-      mBackupFile = fs.createTmpFileForWrite("output-" + tmpPrefix);
+      mBackupFile = newPartFile();
       LOG.trace("OutputStream for key '{}' writing to tempfile: {}", key, mBackupFile);
       mBackupOutputStream = new BufferedOutputStream(new FileOutputStream(mBackupFile), 32768);
     } catch (IOException e) {
@@ -123,22 +212,57 @@ public class COSOutputStream extends OutputStream {
     }
   }
 
+  private File newPartFile() throws IOException {
+    String tmpPrefix = (mKey.replaceAll("/", "-")).replaceAll(":", "-");
+    File file = fs.createTmpFileForWrite("output-" + tmpPrefix);
+    mPartFiles.add(file);
+    return file;
+  }
+
   void checkOpen() throws IOException {
     if (closed.get()) {
       throw new IOException("Output Stream closed");
     }
+    if (mFailure != null) {
+      throw new IOException("Output Stream failed", mFailure);
+    }
   }
 
   @Override
   public void write(int b) throws IOException {
     checkOpen();
-    mBackupOutputStream.write(b);
+    try {
+      mBackupOutputStream.write(b);
+      mBackupFileBytes++;
+      if (mBackupFileBytes >= mPartLimit) {
+        uploadCurrentPart();
+        startNextPart();
+      }
+    } catch (IOException e) {
+      writeFailed(e);
+      throw e;
+    }
   }
 
   @Override
   public void write(byte[] b, int off, int len) throws IOException {
     checkOpen();
-    mBackupOutputStream.write(b, off, len);
+    try {
+      while (len > 0) {
+        int written = (int) Math.min(len, mPartLimit - mBackupFileBytes);
+        mBackupOutputStream.write(b, off, written);
+        mBackupFileBytes += written;
+        off += written;
+        len -= written;
+        if (mBackupFileBytes >= mPartLimit) {
+          uploadCurrentPart();
+          startNextPart();
+        }
+      }
+    } catch (IOException e) {
+      writeFailed(e);
+      throw e;
+    }
   }
 
   @Override
@@ -147,12 +271,130 @@ public class COSOutputStream extends OutputStream {
     mBackupOutputStream.flush();
   }
 
+  /**
+   * Abort the multipart upload after a failed write: the parts already
+   * uploaded are dropped and the object is not written on close
+   *
+   * @param e the failure
+   */
+  private void writeFailed(IOException e) {
+    LOG.debug("Write of {} failed", mKey, e);
+    mFailure = e;
+    abortMultipartUpload();
+  }
+
+  /**
+   * Upload the current file as the next part, starting the multipart upload
+   * if needed. The executor blocks while too many parts are uploading, which
+   * bounds the disk space used.
+   *
+   * @throws IOException if the upload could not be started
+   */
+  private void uploadCurrentPart() throws IOException {
+    mBackupOutputStream.close();
+    if (mUploadId == null) {
+      LOG.debug("Initiating multipart upload of {} after {} bytes", mKey, mBackupFileBytes);
+      ObjectMetadata om = new ObjectMetadata();
+      om.setContentType(mContentType);
+      om.setUserMetadata(mMetadata);
+      try {
+        mUploadId = mClient.initiateMultipartUpload(
+            new InitiateMultipartUploadRequest(mBucketName, mKey, om)).getUploadId();
+      } catch (AmazonClientException e) {
+        throw new IOException(String.format("saving output %s %s", mKey, e), e);
+      }
+    }
+    final int partNumber = mPartUploads.size() + 1;
+    if (partNumber > COSConstants.MAX_MULTIPART_COUNT) {
+      throw new IOException("Number of parts in multipart upload of " + mKey
+          + " exceeded " + COSConstants.MAX_MULTIPART_COUNT);
+    }
+    final File partFile = mBackupFile;
+    final UploadPartRequest request = new UploadPartRequest()
+        .withBucketName(mBucketName)
+        .withKey(mKey)
+        .withUploadId(mUploadId)
+        .withPartNumber(partNumber)
+        .withPartSize(mBackupFileBytes)
+        .withFile(partFile);
+    LOG.debug("Uploading part {} of {} with {} bytes", partNumber, mKey, mBackupFileBytes);
+    synchronized (mFreeFiles) {
+      mUploadingFiles++;
+    }
+    // the SDK opens the file for every attempt, so retries need no rewind
+    mPartUploads.add(COSRetryingTask.submit("upload of part " + partNumber + " of " + mKey,
+        new Callable<PartETag>() {
+          @Override
+          public PartETag call() {
+            return fs.uploadPart(request).getPartETag();
+          }
+        }, null,
+        new Runnable() {
+          @Override
+          public void run() {
+            synchronized (mFreeFiles) {
+              mFreeFiles.add(partFile);
+              mUploadingFiles--;
+              mFreeFiles.notifyAll();
+            }
+          }
+        }, mExecutor));
+    mBackupFileBytes = 0;
+  }
+
+  /**
+   * Continue writing to a free part file, or a new one if all of them are
+   * uploading. The part size grows with the number of parts.
+   *
+   * @throws IOException if the part file could not be opened
+   */
+  private void startNextPart() throws IOException {
+    File nextFile;
+    synchronized (mFreeFiles) {
+      nextFile = mFreeFiles.poll();
+    }
+    if (nextFile == null) {
+      nextFile = newPartFile();
+    }
+    // opening the stream truncates a reused file
+    mBackupFile = nextFile;
+    mPartLimit = COSUtils.getPartSize(mPartSize, mMaxPartSize, mPartSizeGrowthInterval,
+        mPartUploads.size());
+    mBackupOutputStream = new BufferedOutputStream(new FileOutputStream(mBackupFile), 32768);
+  }
+
   @Override
   public void close() throws IOException {
     if (closed.getAndSet(true)) {
       return;
     }
-    mBackupOutputStream.close();
+    try {
+      if (mFailure != null) {
+        throw new IOException("Output Stream failed", mFailure);
+      }
+      mBackupOutputStream.close();
+      if (mUploadId == null) {
+        putObject();
+      } else {
+        completeMultipartUpload();
+      }
+    } catch (IOException | RuntimeException e) {
+      abortMultipartUpload();
+      throw e;
+    } finally {
+      IOUtils.closeStream(mBackupOutputStream);
+      for (File file : mPartFiles) {
+        if (!file.delete()) {
+          LOG.warn("Could not delete temporary cos file: {}", file);
+        }
+      }
+      super.close();
+    }
+    fs.objectChanged(mKey);
+    LOG.debug("OutputStream for key '{}' upload complete", mKey);
+  }
+
+  private void putObject() throws IOException {
     LOG.debug("OutputStream for key '{}' closed. Now beginning upload", mKey);
     try {
       final ObjectMetadata om = new ObjectMetadata();
@@ -170,14 +412,61 @@ public class COSOutputStream extends OutputStream {
       throw (InterruptedIOException) new InterruptedIOException(e.toString())
           .initCause(e);
     } catch (AmazonClientException e) {
-      throw new IOException(String.format("saving output %s %s", mKey, e));
-    } finally {
-      if (!mBackupFile.delete()) {
-        LOG.warn("Could not delete temporary cos file: {}", mBackupOutputStream);
+      throw new IOException(String.format("saving output %s %s", mKey, e), e);
+    }
+  }
+
+  private void completeMultipartUpload() throws IOException {
+    if (mBackupFileBytes > 0) {
+      uploadCurrentPart();
+    }
+    LOG.debug("OutputStream for key '{}' closed. Completing upload of {} parts", mKey,
+        mPartUploads.size());
+    try {
+      List<PartETag> partETags = Futures.allAsList(mPartUploads).get();
+      mClient.completeMultipartUpload(new CompleteMultipartUploadRequest(mBucketName,
+          mKey, mUploadId, partETags));
+    } catch (InterruptedException e) {
+      throw (InterruptedIOException) new InterruptedIOException(e.toString())
+          .initCause(e);
+    } catch (ExecutionException | AmazonClientException e) {
+      Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+      throw new IOException(String.format("saving output %s %s", mKey, cause), cause);
+    }
+  }
+
+  /**
+   * Abort the multipart upload, if any. The part uploads are cancelled and
+   * waited for, so that no upload still reads a part file when the files
+   * are deleted.
+   */
+  private void abortMultipartUpload() {
+    if (mUploadId == null || mAborted) {
+      return;
+    }
+    mAborted = true;
+    for (ListenableFuture<PartETag> partUpload : mPartUploads) {
+      partUpload.cancel(false);
+    }
+    boolean interrupted = false;
+    synchronized (mFreeFiles) {
+      while (mUploadingFiles > 0) {
+        try {
+          mFreeFiles.wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
       }
-      super.close();
     }
-    LOG.debug("OutputStream for key '{}' upload complete", mKey);
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    try {
+      mClient.abortMultipartUpload(
+          new AbortMultipartUploadRequest(mBucketName, mKey, mUploadId));
+    } catch (AmazonClientException e) {
+      LOG.warn("Unable to abort multipart upload {} of {}", mUploadId, mKey, e);
+    }
   }
 
 }
@@ -0,0 +1,269 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *  (C) Copyright IBM Corp. 2015, 2016
+ */
+
+package com.ibm.stocator.fs.cos;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Issues GET requests with hedging: when the response of a request has not
+ * arrived within a deadline derived from a percentile of the recent response
+ * times, a duplicate request is sent, the first response wins and the other
+ * one is aborted. The number of hedged requests is capped by a budget
+ * expressed as a percentage of all the requests of the filesystem.
+ * The requests run on a bounded pool of threads: when all of them are busy a
+ * request is sent without hedging by the caller.
+ */
+public class COSReadHedger {
+  private static final Logger LOG = LoggerFactory.getLogger(COSReadHedger.class);
+
+  /**
+   * Number of response times kept to compute the deadline.
+   */
+  private static final int SAMPLE_WINDOW = 1024;
+
+  /**
+   * Number of response times needed before requests are hedged.
+   */
+  private static final int MIN_SAMPLES = 32;
+
+  /**
+   * Number of new response times after which the deadline is computed
+   * again.
+   */
+  private static final int RECOMPUTE_INTERVAL = 64;
+
+  private final double percentile;
+  private final long minDelayNanos;
+  private final double budgetPercent;
+  private final ListeningExecutorService executor;
+
+  /**
+   * Ring buffer of the latest response times in nanoseconds; guarded by
+   * this.
+   */
+  private final long[] samples = new long[SAMPLE_WINDOW];
+  private long sampleCount;
+
+  /**
+   * Deadline of the requests in nanoseconds, or -1 until there are enough
+   * samples.
+   */
+  private volatile long deadlineNanos = -1;
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong hedges = new AtomicLong();
+  private final AtomicLong hedgeWins = new AtomicLong();
+
+  /**
+   * @param percentileT percentile of the response times used as deadline
+   * @param minDelayMillis lower bound of the deadline in milliseconds
+   * @param budgetPercentT maximum percentage of requests which may be hedged
+   * @param maxThreads maximum number of requests running at once
+   */
+  public COSReadHedger(double percentileT, long minDelayMillis, double budgetPercentT,
+      int maxThreads) {
+    percentile = percentileT;
+    minDelayNanos = TimeUnit.MILLISECONDS.toNanos(minDelayMillis);
+    budgetPercent = budgetPercentT;
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads,
+        60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+        BlockingThreadPoolExecutorService.newDaemonThreadFactory("s3a-hedged-get"));
+    pool.allowCoreThreadTimeOut(true);
+    executor = MoreExecutors.listeningDecorator(pool);
+    LOG.debug("Hedged reads enabled: percentile {} min delay {} ms budget {}%",
+        percentile, minDelayMillis, budgetPercent);
+  }
+
+  /**
+   * Get an object, hedging the request if it is slow.
+   *
+   * @param client COS client
+   * @param request the request
+   * @return the object of the winning request
+   * @throws AmazonClientException if the requests failed
+   * @throws InterruptedIOException if interrupted while waiting
+   */
+  public S3Object getObject(final AmazonS3 client, final GetObjectRequest request)
+      throws IOException {
+    requests.incrementAndGet();
+    long deadline = deadlineNanos;
+    final SettableFuture<S3Object> winner = SettableFuture.create();
+    final AtomicInteger pending = new AtomicInteger(1);
+    if (deadline < 0 || !submit(new Attempt(client, request, winner, pending, false))) {
+      long start = System.nanoTime();
+      S3Object object = client.getObject(request);
+      addSample(System.nanoTime() - start);
+      return object;
+    }
+    try {
+      try {
+        return winner.get(deadline, TimeUnit.NANOSECONDS);
+      } catch (TimeoutException e) {
+        if (acquireHedge()) {
+          LOG.debug("Hedging GET of {}/{} after {} ms", request.getBucketName(),
+              request.getKey(), TimeUnit.NANOSECONDS.toMillis(deadline));
+          pending.incrementAndGet();
+          if (!submit(new Attempt(client, request, winner, pending, true))) {
+            pending.decrementAndGet();
+            hedges.decrementAndGet();
+          }
+        }
+        return winner.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      // any response arriving later is aborted
+      winner.setException(e);
+      throw (InterruptedIOException) new InterruptedIOException(
+          "Interrupted waiting for GET of " + request.getKey()).initCause(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof AmazonClientException) {
+        throw (AmazonClientException) cause;
+      }
+      throw new IOException("GET of " + request.getKey() + " failed", cause);
+    }
+  }
+
+  /**
+   * Take a hedge from the budget.
+   * @return true if a hedged request may be sent
+   */
+  private boolean acquireHedge() {
+    while (true) {
+      long current = hedges.get();
+      if (current + 1 > requests.get() * budgetPercent / 100) {
+        return false;
+      }
+      if (hedges.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Run a request on the pool.
+   * @param attempt the request
+   * @return false if all the threads are busy or the hedger is closed
+   */
+  private boolean submit(Attempt attempt) {
+    try {
+      executor.execute(attempt);
+      return true;
+    } catch (RejectedExecutionException e) {
+      return false;
+    }
+  }
+
+  private synchronized void addSample(long nanos) {
+    samples[(int) (sampleCount % SAMPLE_WINDOW)] = nanos;
+    sampleCount++;
+    if (sampleCount >= MIN_SAMPLES && (sampleCount - MIN_SAMPLES) % RECOMPUTE_INTERVAL == 0) {
+      deadlineNanos = computeDeadlineNanos();
+    }
+  }
+
+  /**
+   * Compute the deadline from the percentile of the samples; guarded by
+   * this.
+   * @return the deadline in nanoseconds
+   */
+  private long computeDeadlineNanos() {
+    long[] sorted = Arrays.copyOf(samples, (int) Math.min(sampleCount, SAMPLE_WINDOW));
+    Arrays.sort(sorted);
+    int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+    return Math.max(minDelayNanos, sorted[Math.max(0, Math.min(index, sorted.length - 1))]);
+  }
+
+  /**
+   * Stop the threads of the pool once their requests complete; later
+   * requests are not hedged.
+   */
+  public void close() {
+    executor.shutdown();
+  }
+
+  @Override
+  public String toString() {
+    return "COSReadHedger{requests=" + requests + " hedges=" + hedges
+        + " hedgeWins=" + hedgeWins + "}";
+  }
+
+  /**
+   * A single GET request racing for the result.
+   */
+  private final class Attempt implements Runnable {
+    private final AmazonS3 client;
+    private final GetObjectRequest request;
+    private final SettableFuture<S3Object> winner;
+    private final AtomicInteger pending;
+    private final boolean hedge;
+
+    private Attempt(AmazonS3 clientT, GetObjectRequest requestT,
+        SettableFuture<S3Object> winnerT, AtomicInteger pendingT, boolean hedgeT) {
+      client = clientT;
+      request = requestT;
+      winner = winnerT;
+      pending = pendingT;
+      hedge = hedgeT;
+    }
+
+    @Override
+    public void run() {
+      long start = System.nanoTime();
+      S3Object object;
+      try {
+        object = client.getObject(request);
+      } catch (RuntimeException e) {
+        if (pending.decrementAndGet() == 0) {
+          winner.setException(e);
+        }
+        return;
+      }
+      addSample(System.nanoTime() - start);
+      if (winner.set(object)) {
+        if (hedge) {
+          hedgeWins.incrementAndGet();
+        }
+      } else {
+        LOG.debug("Aborting losing GET of {}", request.getKey());
+        object.getObjectContent().abort();
+      }
+    }
+  }
+}
@@ -0,0 +1,218 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *  (C) Copyright IBM Corp. 2015, 2016
+ */
+
+package com.ibm.stocator.fs.cos;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import org.apache.hadoop.io.retry.RetryPolicies;
+import org.apache.hadoop.io.retry.RetryPolicy;
+
+/**
+ * A request run on an executor and retried with an exponential backoff.
+ * A failed attempt does not sleep in the executor: the next attempt is
+ * submitted again to the executor by a JVM wide timer thread once the
+ * backoff delay has elapsed, so the executor threads keep serving the other
+ * tasks in the meantime.
+ *
+ * @param <T> result of the request
+ */
+final class COSRetryingTask<T> implements Runnable {
+  private static final Logger LOG = LoggerFactory.getLogger(COSRetryingTask.class);
+
+  /**
+   * Retry policy of the requests; the exponential backoff is randomized so
+   * that requests failing together are not retried together.
+   */
+  private static final RetryPolicy RETRY_POLICY =
+      RetryPolicies.exponentialBackoffRetry(5, 500, TimeUnit.MILLISECONDS);
+
+  /**
+   * Timer resubmitting the attempts; it never runs a request itself.
+   */
+  private static final ScheduledExecutorService TIMER = newTimer();
+
+  private final String operation;
+  private final Callable<T> request;
+  private final Callable<Boolean> rewind;
+  private final Runnable cleanup;
+  private final Executor executor;
+  private final SettableFuture<T> result = SettableFuture.create();
+  private int retryCount;
+
+  private COSRetryingTask(String operationT, Callable<T> requestT,
+      Callable<Boolean> rewindT, Runnable cleanupT, Executor executorT) {
+    operation = operationT;
+    request = requestT;
+    rewind = rewindT;
+    cleanup = cleanupT;
+    executor = executorT;
+  }
+
+  /**
+   * Run a request on an executor, retrying it on transient failures. A
+   * {@link SemaphoredDelegatingExecutor} keeps its permit until the last
+   * attempt completes, not only during the first one.
+   *
+   * @param operation operation for log messages
+   * @param request the request
+   * @param rewind prepares a retry of the request, returns false if the
+   *        request cannot be sent again; null if it can always be sent again
+   * @param cleanup run once no attempt is running nor will run, even if the
+   *        result was cancelled; may be null
+   * @param executor executor of the attempts
+   * @param <T> result of the request
+   * @return the result of the last attempt
+   */
+  static <T> ListenableFuture<T> submit(String operation, Callable<T> request,
+      Callable<Boolean> rewind, Runnable cleanup, Executor executor) {
+    if (executor instanceof SemaphoredDelegatingExecutor) {
+      return ((SemaphoredDelegatingExecutor) executor).submitRetrying(operation, request,
+          rewind, cleanup);
+    }
+    return start(operation, request, rewind, cleanup, executor);
+  }
+
+  /**
+   * Same as {@link #submit}, without taking the permits of the executor
+   */
+  static <T> ListenableFuture<T> start(String operation, Callable<T> request,
+      Callable<Boolean> rewind, Runnable cleanup, Executor executor) {
+    COSRetryingTask<T> task = new COSRetryingTask<>(operation, request, rewind, cleanup,
+        executor);
+    task.resubmit();
+    return task.result;
+  }
+
+  /**
+   * Client errors other than timeouts and throttling fail the same way
+   * when retried.
+   *
+   * @param e exception raised by a request
+   * @return true if the request may succeed when sent again
+   */
+  static boolean isRetriable(AmazonClientException e) {
+    if (e instanceof AmazonServiceException) {
+      int status = ((AmazonServiceException) e).getStatusCode();
+      return status < 400 || status >= 500 || status == 408 || status == 429;
+    }
+    return true;
+  }
+
+  /**
+   * Delay before the next attempt of a failed request
+   *
+   * @param e exception raised by the request
+   * @param retryCount number of retries already attempted
+   * @return the delay in milliseconds, or -1 if the request should fail
+   */
+  static long getRetryDelay(AmazonClientException e, int retryCount) {
+    if (!isRetriable(e)) {
+      return -1;
+    }
+    try {
+      RetryPolicy.RetryAction retryAction = RETRY_POLICY.shouldRetry(e, retryCount, 0, true);
+      if (retryAction.action == RetryPolicy.RetryAction.RetryDecision.RETRY) {
+        return retryAction.delayMillis;
+      }
+    } catch (Exception ignored) {
+      // fail the request
+    }
+    return -1;
+  }
+
+  @Override
+  public void run() {
+    if (result.isDone()) {
+      // cancelled while waiting for a thread
+      finish();
+      return;
+    }
+    try {
+      result.set(request.call());
+    } catch (AmazonClientException e) {
+      long delay = getRetryDelay(e, retryCount++);
+      if (delay >= 0 && !result.isDone() && prepareRetry(e)) {
+        LOG.info("Retrying {} in {} ms after exception ", operation, delay, e);
+        TIMER.schedule(new Runnable() {
+          @Override
+          public void run() {
+            resubmit();
+          }
+        }, delay, TimeUnit.MILLISECONDS);
+        return;
+      }
+      result.setException(e);
+    } catch (Throwable e) {
+      result.setException(e);
+    }
+    finish();
+  }
+
+  private boolean prepareRetry(AmazonClientException e) {
+    if (rewind == null) {
+      return true;
+    }
+    try {
+      return rewind.call();
+    } catch (Exception ex) {
+      LOG.debug("Unable to retry {} after exception {}", operation, e, ex);
+      return false;
+    }
+  }
+
+  private void resubmit() {
+    if (result.isDone()) {
+      // cancelled while waiting for the retry
+      finish();
+      return;
+    }
+    try {
+      executor.execute(this);
+    } catch (RejectedExecutionException e) {
+      result.setException(e);
+      finish();
+    }
+  }
+
+  private void finish() {
+    if (cleanup != null) {
+      try {
+        cleanup.run();
+      } catch (RuntimeException e) {
+        LOG.warn("Cleanup of {} failed", operation, e);
+      }
+    }
+  }
+
+  private static ScheduledExecutorService newTimer() {
+    return new ScheduledThreadPoolExecutor(1,
+        BlockingThreadPoolExecutorService.newDaemonThreadFactory("s3a-upload-retry"));
+  }
+}
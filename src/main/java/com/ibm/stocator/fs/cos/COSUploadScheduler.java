@@ -0,0 +1,311 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *  (C) Copyright IBM Corp. 2015, 2016
+ */
+
+package com.ibm.stocator.fs.cos;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * JVM wide scheduler of block uploads shared by the output streams of all
+ * the filesystem instances.
+ * Each stream gets its own queue and the worker threads take one task from
+ * each queue in turn, so a stream uploading many parts does not delay the
+ * other streams. Single PUT uploads, which complete a small object, go to a
+ * priority queue served before any part.
+ */
+public final class COSUploadScheduler {
+  private static final Logger LOG = LoggerFactory.getLogger(COSUploadScheduler.class);
+  private static COSUploadScheduler sInstance;
+
+  private final int threads;
+  private final StreamQueue priorityQueue = new StreamQueue();
+  private final ListeningExecutorService priorityExecutor =
+      MoreExecutors.listeningDecorator(priorityQueue);
+
+  /**
+   * Stream queues with pending tasks, in the order they are served; guarded
+   * by this.
+   */
+  private final Deque<StreamQueue> readyQueues = new ArrayDeque<>();
+  private int queuedTasks;
+  private int runningTasks;
+  private long completedPriorityTasks;
+  private long completedTasks;
+
+  /**
+   * Get the JVM wide scheduler; the number of threads is only used by the
+   * first call
+   *
+   * @param threads number of upload threads
+   * @return the scheduler
+   */
+  public static synchronized COSUploadScheduler getInstance(int threads) {
+    if (sInstance == null) {
+      sInstance = new COSUploadScheduler(threads);
+    } else if (sInstance.threads != threads) {
+      LOG.warn("Upload scheduler already started with {} threads, ignoring {} threads",
+          sInstance.threads, threads);
+    }
+    return sInstance;
+  }
+
+  /**
+   * Create a scheduler; the filesystems share the one of
+   * {@link #getInstance(int)}
+   *
+   * @param threadsT number of upload threads
+   */
+  COSUploadScheduler(int threadsT) {
+    LOG.debug("Upload scheduler initiated with {} threads", threadsT);
+    threads = threadsT;
+    ThreadFactory threadFactory =
+        BlockingThreadPoolExecutorService.newDaemonThreadFactory("s3a-upload-scheduler");
+    for (int i = 0; i < threads; i++) {
+      threadFactory.newThread(new Runnable() {
+        @Override
+        public void run() {
+          work();
+        }
+      }).start();
+    }
+  }
+
+  /**
+   * Create the queue of an output stream
+   *
+   * @return an executor running its tasks in the queue of the stream
+   */
+  public ListeningExecutorService newStreamExecutor() {
+    return MoreExecutors.listeningDecorator(new StreamQueue());
+  }
+
+  /**
+   * @return an executor running its tasks before the tasks of any stream
+   */
+  public ListeningExecutorService getPriorityExecutor() {
+    return priorityExecutor;
+  }
+
+  private synchronized void enqueue(StreamQueue queue, Runnable task) {
+    if (queue.shutdown) {
+      throw new RejectedExecutionException("Upload queue is shut down");
+    }
+    if (queue != priorityQueue && queue.tasks.isEmpty()) {
+      readyQueues.add(queue);
+    }
+    queue.tasks.add(new ScheduledTask(queue, task));
+    queuedTasks++;
+    notifyAll();
+  }
+
+  /**
+   * Take the next task: priority tasks first, then one task from each ready
+   * stream queue in turn.
+   *
+   * @param completed the task completed by the caller, or null
+   * @return the next task
+   * @throws InterruptedException if interrupted while waiting
+   */
+  private synchronized ScheduledTask take(ScheduledTask completed)
+      throws InterruptedException {
+    if (completed != null) {
+      runningTasks--;
+      completed.queue.running--;
+      if (completed.queue == priorityQueue) {
+        completedPriorityTasks++;
+      } else {
+        completedTasks++;
+      }
+      notifyAll();
+    }
+    while (priorityQueue.tasks.isEmpty() && readyQueues.isEmpty()) {
+      wait();
+    }
+    ScheduledTask task;
+    if (!priorityQueue.tasks.isEmpty()) {
+      task = priorityQueue.tasks.poll();
+    } else {
+      StreamQueue queue = readyQueues.poll();
+      task = queue.tasks.poll();
+      if (!queue.tasks.isEmpty()) {
+        readyQueues.add(queue);
+      }
+    }
+    queuedTasks--;
+    runningTasks++;
+    task.queue.running++;
+    return task;
+  }
+
+  /**
+   * Loop of a worker thread.
+   */
+  private void work() {
+    ScheduledTask task = null;
+    try {
+      while (true) {
+        task = take(task);
+        try {
+          task.runnable.run();
+        } catch (Throwable e) {
+          // a worker must survive any task, or the scheduler loses a thread
+          LOG.warn("Upload task failed", e);
+        }
+      }
+    } catch (InterruptedException e) {
+      LOG.debug("Upload scheduler thread interrupted");
+    }
+  }
+
+  /**
+   * @return the number of upload threads
+   */
+  public int getThreads() {
+    return threads;
+  }
+
+  /**
+   * @return the number of priority tasks waiting for a thread
+   */
+  public synchronized int getPriorityQueueDepth() {
+    return priorityQueue.tasks.size();
+  }
+
+  /**
+   * @return the number of tasks waiting for a thread, priority tasks
+   *         included
+   */
+  public synchronized int getQueueDepth() {
+    return queuedTasks;
+  }
+
+  /**
+   * @return the number of streams with tasks waiting for a thread
+   */
+  public synchronized int getWaitingStreams() {
+    return readyQueues.size();
+  }
+
+  /**
+   * @return the number of tasks running
+   */
+  public synchronized int getRunningTasks() {
+    return runningTasks;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "COSUploadScheduler{threads=" + threads + " running=" + runningTasks
+        + " queued=" + queuedTasks + " priorityQueued=" + priorityQueue.tasks.size()
+        + " waitingStreams=" + readyQueues.size()
+        + " completed=" + completedTasks + " completedPriority=" + completedPriorityTasks
+        + "}";
+  }
+
+  /**
+   * A task and the queue it was submitted to.
+   */
+  private static final class ScheduledTask {
+    private final StreamQueue queue;
+    private final Runnable runnable;
+
+    private ScheduledTask(StreamQueue queueT, Runnable runnableT) {
+      queue = queueT;
+      runnable = runnableT;
+    }
+  }
+
+  /**
+   * Queue of the tasks of a stream, or of the priority tasks. All its state
+   * is guarded by the scheduler.
+   */
+  private final class StreamQueue extends AbstractExecutorService {
+    private final Deque<ScheduledTask> tasks = new ArrayDeque<>();
+    private int running;
+    private boolean shutdown;
+
+    @Override
+    public void execute(Runnable command) {
+      enqueue(this, command);
+    }
+
+    @Override
+    public void shutdown() {
+      synchronized (COSUploadScheduler.this) {
+        shutdown = true;
+      }
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+      synchronized (COSUploadScheduler.this) {
+        shutdown = true;
+        List<Runnable> pending = new ArrayList<>(tasks.size());
+        for (ScheduledTask task : tasks) {
+          pending.add(task.runnable);
+        }
+        queuedTasks -= tasks.size();
+        tasks.clear();
+        readyQueues.remove(this);
+        COSUploadScheduler.this.notifyAll();
+        return pending;
+      }
+    }
+
+    @Override
+    public boolean isShutdown() {
+      synchronized (COSUploadScheduler.this) {
+        return shutdown;
+      }
+    }
+
+    @Override
+    public boolean isTerminated() {
+      synchronized (COSUploadScheduler.this) {
+        return shutdown && tasks.isEmpty() && running == 0;
+      }
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit)
+        throws InterruptedException {
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      synchronized (COSUploadScheduler.this) {
+        while (!isTerminated()) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            return false;
+          }
+          TimeUnit.NANOSECONDS.timedWait(COSUploadScheduler.this, remaining);
+        }
+        return true;
+      }
+    }
+  }
+}
@@ -231,6 +231,30 @@ public final class COSUtils {
     }
   }
 
+  /**
+   * Size of a part of a multipart upload: the part size doubles every
+   * {@code growthInterval} parts up to {@code maxSize}, so that large objects
+   * use fewer, larger parts and stay within
+   * {@link COSConstants#MAX_MULTIPART_COUNT} parts.
+   *
+   * @param size size of the first parts
+   * @param maxSize maximum size of a part once the size has grown
+   * @param growthInterval number of parts after which the size doubles, 0 for
+   *        a fixed size
+   * @param index index of the part, starting at 1
+   * @return the size of the part
+   */
+  public static long getPartSize(long size, long maxSize, int growthInterval, long index) {
+    if (growthInterval <= 0) {
+      return size;
+    }
+    long partSize = size;
+    for (long i = (index - 1) / growthInterval; i > 0 && partSize < maxSize; i--) {
+      partSize <<= 1;
+    }
+    return Math.max(size, Math.min(partSize, maxSize));
+  }
+
   /**
    * Create a files status instance from a listing.
    * @param keyPath path to entry
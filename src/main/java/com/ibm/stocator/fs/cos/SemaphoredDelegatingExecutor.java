@@ -128,6 +128,40 @@ class SemaphoredDelegatingExecutor extends ForwardingListeningExecutorService {
     super.execute(new RunnableWithPermitRelease(command));
   }
 
+  /**
+   * Run a request retried by {@link COSRetryingTask} on the delegate: the
+   * permit is held until the last attempt completes, a retry waiting for its
+   * backoff delay included.
+   *
+   * @param operation operation for log messages
+   * @param request the request
+   * @param rewind prepares a retry of the request; may be null
+   * @param cleanup run once no attempt is running nor will run; may be null
+   * @param <T> result of the request
+   * @return the result of the last attempt
+   */
+  <T> ListenableFuture<T> submitRetrying(String operation, Callable<T> request,
+      Callable<Boolean> rewind, final Runnable cleanup) {
+    try {
+      queueingPermits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return Futures.immediateFailedFuture(e);
+    }
+    return COSRetryingTask.start(operation, request, rewind, new Runnable() {
+      @Override
+      public void run() {
+        try {
+          if (cleanup != null) {
+            cleanup.run();
+          }
+        } finally {
+          queueingPermits.release();
+        }
+      }
+    }, executorDelegatee);
+  }
+
   /**
    * Get the number of permits available; guaranteed to be
    * {@code 0 <= availablePermits <= size}.
@@ -51,6 +51,7 @@ import org.apache.hadoop.fs.PathFilter;
 import org.apache.hadoop.mapreduce.TaskAttemptID;
 import org.apache.hadoop.fs.FileSystem.Statistics;
 
+import com.ibm.stocator.fs.cache.NegativeCache;
 import com.ibm.stocator.fs.common.Constants;
 import com.ibm.stocator.fs.common.IStoreClient;
 import com.ibm.stocator.fs.common.StocatorPath;
@@ -142,6 +143,7 @@ public class SwiftAPIClient implements IStoreClient {
   * Caching can be done since objects are immutable.
   */
   private SwiftObjectCache objectCache;
+  private NegativeCache negativeCache;
 
   /*
    * Page size for container listing
@@ -307,6 +309,9 @@ public class SwiftAPIClient implements IStoreClient {
       }
     }
     objectCache = new SwiftObjectCache(containerObj);
+    negativeCache = new NegativeCache(conf.getInt(Constants.CACHE_SIZE,
+        Constants.GUAVA_CACHE_SIZE_DEFAULT), conf.getLong(Constants.NEGATIVE_CACHE_TTL,
+        Constants.NEGATIVE_CACHE_TTL_DEFAULT));
   }
 
   @Override
@@ -368,6 +373,11 @@ public class SwiftAPIClient implements IStoreClient {
       LOG.debug("getObjectMetadata on temp object {}. Return not found", objectName);
       throw new FileNotFoundException("Not found " + path.toString());
     }
+    if (negativeCache.isNotFound(objectName)) {
+      LOG.debug("Not found {} in negative cache", path.toString());
+      throw new FileNotFoundException("No such object exists " + path.toString());
+    }
+    long lookupGeneration = negativeCache.getGeneration();
     SwiftCachedObject obj = objectCache.get(objectName);
     if (obj != null) {
       // object exists, We need to check if the object size is equal to zero
@@ -398,6 +408,7 @@ public class SwiftAPIClient implements IStoreClient {
       return new FileStatus(0, isDirectory, 1, blockSize, 0L, path);
     }
     LOG.debug("Not found {}", path.toString());
+    negativeCache.putNotFound(objectName, lookupGeneration);
     throw new FileNotFoundException("No such object exists " + path.toString());
   }
 
@@ -644,18 +655,19 @@ public class SwiftAPIClient implements IStoreClient {
     final URL url = new URL(mJossAccount.getAccessURL() + "/" + getURLEncodedObjName(objName));
     LOG.debug("PUT {}. Content-Type : {}", url.toString(), contentType);
 
-    // When overwriting an object, cached metadata will be outdated
+    // When overwriting an object, cached metadata will be outdated; the
+    // stream invalidates the caches again once the object is written
     String cachedName = getObjName(container + "/", objName);
-    objectCache.remove(cachedName);
+    objectChanged(cachedName);
 
     try {
       final OutputStream sos;
       if (nonStreamingUpload) {
         sos = new SwiftNoStreamingOutputStream(mJossAccount, url, contentType,
-            metadata, swiftConnectionManager, this);
+            metadata, swiftConnectionManager, this, cachedName);
       } else {
         sos = new SwiftOutputStream(mJossAccount, url, contentType,
-            metadata, swiftConnectionManager);
+            metadata, swiftConnectionManager, this, cachedName);
       }
       return new FSDataOutputStream(sos, statistics);
     } catch (IOException e) {
@@ -664,6 +676,17 @@ public class SwiftAPIClient implements IStoreClient {
     }
   }
 
+  /**
+   * Forget the cached metadata of an object written by this client and the
+   * cached not found results it makes outdated
+   *
+   * @param cachedName name of the object in the caches
+   */
+  void objectChanged(String cachedName) {
+    objectCache.remove(cachedName);
+    negativeCache.invalidate(cachedName);
+  }
+
   @Override
   public boolean delete(String hostName, Path path, boolean recursive) throws IOException {
     final String obj;
@@ -896,7 +919,13 @@ public class SwiftAPIClient implements IStoreClient {
     Container cont = mJossAccount.getAccount().getContainer(container);
     StoredObject so = cont.getObject(objNameSrc);
     StoredObject soDst = cont.getObject(objNameDst);
-    so.copyObject(cont, soDst);
+    objectChanged(objNameDst);
+    try {
+      so.copyObject(cont, soDst);
+    } finally {
+      // a lookup made while the copy ran may have cached the old state
+      objectChanged(objNameDst);
+    }
     return true;
   }
 
@@ -930,4 +959,13 @@ public class SwiftAPIClient implements IStoreClient {
   public void setWorkingDirectory(Path newDir) {
   }
 
+  @Override
+  public void waitForPendingUploads() {
+    // output streams complete their upload on close
+  }
+
+  @Override
+  public void close() {
+  }
+
 }
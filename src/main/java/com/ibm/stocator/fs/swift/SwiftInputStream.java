@@ -20,6 +20,7 @@ package com.ibm.stocator.fs.swift;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import com.ibm.stocator.fs.common.Constants;
 import com.ibm.stocator.fs.common.exception.ClientException;
@@ -28,7 +29,9 @@ import com.ibm.stocator.fs.swift.http.SwiftConnectionManager;
 
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.classification.InterfaceStability;
+import org.apache.hadoop.fs.ByteBufferReadable;
 import org.apache.hadoop.fs.CanSetReadahead;
+import org.apache.hadoop.fs.CanUnbuffer;
 import org.apache.hadoop.fs.FSInputStream;
 import org.apache.hadoop.fs.Path;
 import org.slf4j.Logger;
@@ -36,7 +39,8 @@ import org.slf4j.LoggerFactory;
 
 @InterfaceAudience.Private
 @InterfaceStability.Evolving
-public class SwiftInputStream extends FSInputStream implements CanSetReadahead {
+public class SwiftInputStream extends FSInputStream implements CanSetReadahead,
+    ByteBufferReadable, CanUnbuffer {
 
   /**
    * current position
@@ -91,6 +95,16 @@ public class SwiftInputStream extends FSInputStream implements CanSetReadahead {
 
   private long negativeSeek = 0;
 
+  /**
+   * Size of the buffer used to copy data into direct byte buffers
+   */
+  private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Buffer reused to copy data into direct byte buffers
+   */
+  private byte[] transferBuffer;
+
   /**
    * Default constructor
    *
@@ -304,6 +318,37 @@ public class SwiftInputStream extends FSInputStream implements CanSetReadahead {
     return bytesRead;
   }
 
+  /**
+   * Read into a byte buffer. Heap buffers are filled straight through their
+   * backing array; direct buffers are filled through a transfer buffer
+   * owned by the stream, so no array is allocated per read.
+   * {@inheritDoc}
+   */
+  @Override
+  public synchronized int read(ByteBuffer buf) throws IOException {
+    checkNotClosed();
+    if (!buf.hasRemaining()) {
+      return 0;
+    }
+    if (buf.hasArray()) {
+      int bytesRead = read(buf.array(), buf.arrayOffset() + buf.position(),
+          buf.remaining());
+      if (bytesRead > 0) {
+        buf.position(buf.position() + bytesRead);
+      }
+      return bytesRead;
+    }
+    if (transferBuffer == null) {
+      transferBuffer = new byte[TRANSFER_BUFFER_SIZE];
+    }
+    int bytesRead = read(transferBuffer, 0,
+        Math.min(buf.remaining(), transferBuffer.length));
+    if (bytesRead > 0) {
+      buf.put(transferBuffer, 0, bytesRead);
+    }
+    return bytesRead;
+  }
+
   private void checkNotClosed() throws IOException {
     if (closed) {
       throw new IOException(uri + ": STREAM_IS_CLOSED");
@@ -323,6 +368,15 @@ public class SwiftInputStream extends FSInputStream implements CanSetReadahead {
     }
   }
 
+  /**
+   * Close the wrapped stream to free its connection; the next read
+   * reopens the object at the current position
+   */
+  @Override
+  public synchronized void unbuffer() {
+    closeStream("unbuffer()", contentRangeFinish);
+  }
+
   /**
    * close the stream
    *
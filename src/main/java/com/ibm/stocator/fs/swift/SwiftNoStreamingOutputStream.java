@@ -68,6 +68,14 @@ public class SwiftNoStreamingOutputStream extends OutputStream {
   private final AtomicBoolean closed = new AtomicBoolean(false);
   private Map<String, String> metadata;
   private final String contentType;
+  /*
+   * Client whose caches are invalidated once the object is written
+   */
+  private final SwiftAPIClient fs;
+  /*
+   * Name of the object in the caches of the client
+   */
+  private final String cachedName;
 
   /**
    * Default constructor
@@ -78,14 +86,17 @@ public class SwiftNoStreamingOutputStream extends OutputStream {
    * @param metadataT input metadata
    * @param connectionManager SwiftConnectionManager
    * @param fsT SwiftAPIClient
+   * @param cachedNameT name of the object in the caches of the client
    * @throws IOException if error
    */
   public SwiftNoStreamingOutputStream(JossAccount account, URL url, final String contentTypeT,
                            Map<String, String> metadataT, SwiftConnectionManager connectionManager,
-                           SwiftAPIClient fsT)
+                           SwiftAPIClient fsT, String cachedNameT)
           throws IOException {
     LOG.debug("SwiftNoStreamingOutputStream constructor entry for {}", url.toString());
     mUrl = url;
+    fs = fsT;
+    cachedName = cachedNameT;
     contentType = contentTypeT;
     mAccount = account;
     scm = connectionManager;
@@ -146,6 +157,7 @@ public class SwiftNoStreamingOutputStream extends OutputStream {
       }
       is.close();
       super.close();
+      fs.objectChanged(cachedName);
     }
     LOG.debug("OutputStream for key '{}' upload complete", mUrl.toString());
   }
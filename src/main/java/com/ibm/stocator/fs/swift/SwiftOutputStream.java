@@ -88,6 +88,16 @@ public class SwiftOutputStream extends OutputStream {
   private final PipedOutputStream pipOutStream;
   private final BufferedOutputStream bufOutStream;
 
+  /*
+   * Client whose caches are invalidated once the object is written
+   */
+  private final SwiftAPIClient fs;
+
+  /*
+   * Name of the object in the caches of the client
+   */
+  private final String cachedName;
+
   /**
    * Default constructor
    *
@@ -96,15 +106,21 @@ public class SwiftOutputStream extends OutputStream {
    * @param targetContentType Content type
    * @param metadata          input metadata
    * @param connectionManager SwiftConnectionManager
+   * @param fsT               client whose caches are invalidated on close
+   * @param cachedNameT       name of the object in the caches of the client
    */
   public SwiftOutputStream(
       JossAccount account,
       URL url,
       final String targetContentType,
       Map<String, String> metadata,
-      SwiftConnectionManager connectionManager
+      SwiftConnectionManager connectionManager,
+      SwiftAPIClient fsT,
+      String cachedNameT
   ) {
     mUrl = url;
+    fs = fsT;
+    cachedName = cachedNameT;
     mAccount = account;
     client = connectionManager.createHttpConnection();
     contentType = targetContentType;
@@ -232,6 +248,8 @@ public class SwiftOutputStream extends OutputStream {
       }
     } catch (InterruptedException | ExecutionException e) {
       throw new IOException(e);
+    } finally {
+      fs.objectChanged(cachedName);
     }
   }
 
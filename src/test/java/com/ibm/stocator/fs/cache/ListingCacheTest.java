@@ -0,0 +1,139 @@
+/**
+ * (C) Copyright IBM Corp. 2015, 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.stocator.fs.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.cache.Weigher;
+
+public class ListingCacheTest {
+
+  private static final Weigher<ListingCache.Key, String> WEIGHER =
+      new Weigher<ListingCache.Key, String>() {
+        @Override
+        public int weigh(ListingCache.Key key, String listing) {
+          return 1;
+        }
+      };
+
+  private static ListingCache.Key key(String prefix) {
+    return new ListingCache.Key(prefix, "/", false);
+  }
+
+  private static ListingCache<String> newCache() {
+    return new ListingCache<>(1000, 60000, WEIGHER);
+  }
+
+  private static void put(ListingCache<String> cache, String... prefixes) {
+    for (String prefix : prefixes) {
+      cache.put(key(prefix), prefix, cache.getGeneration());
+    }
+  }
+
+  @Test
+  public void testDisabledWithoutTTL() {
+    ListingCache<String> cache = new ListingCache<>(1000, 0, WEIGHER);
+    Assert.assertFalse(cache.isEnabled());
+    cache.put(key("a/"), "a/", cache.getGeneration());
+    Assert.assertNull(cache.get(key("a/")));
+  }
+
+  @Test
+  public void testInvalidateEvictsPrefixesOfTheName() {
+    ListingCache<String> cache = newCache();
+    put(cache, "", "a/", "a/b/", "a/b/c", "a/bc/", "x/");
+    cache.invalidate("a/b/c/d");
+    Assert.assertNull(cache.get(key("")));
+    Assert.assertNull(cache.get(key("a/")));
+    Assert.assertNull(cache.get(key("a/b/")));
+    Assert.assertNull(cache.get(key("a/b/c")));
+    Assert.assertEquals("a/bc/", cache.get(key("a/bc/")));
+    Assert.assertEquals("x/", cache.get(key("x/")));
+  }
+
+  @Test
+  public void testPartialSegmentPrefix() {
+    ListingCache<String> cache = newCache();
+    put(cache, "a/b/c", "a/b/d");
+    // a listing of prefix a/b/c also lists a/b/cd
+    cache.invalidate("a/b/cd");
+    Assert.assertNull(cache.get(key("a/b/c")));
+    Assert.assertEquals("a/b/d", cache.get(key("a/b/d")));
+  }
+
+  @Test
+  public void testKeysDifferByDelimiterAndMode() {
+    ListingCache<String> cache = newCache();
+    cache.put(key("a/"), "delimited", cache.getGeneration());
+    cache.put(new ListingCache.Key("a/", null, true), "flat", cache.getGeneration());
+    Assert.assertEquals("delimited", cache.get(key("a/")));
+    Assert.assertEquals("flat", cache.get(new ListingCache.Key("a/", null, true)));
+    cache.invalidate("a/b");
+    Assert.assertNull(cache.get(key("a/")));
+    Assert.assertNull(cache.get(new ListingCache.Key("a/", null, true)));
+  }
+
+  @Test
+  public void testListingBeforeWriteNotCached() {
+    ListingCache<String> cache = newCache();
+    long generation = cache.getGeneration();
+    // an object is written while the listing runs
+    cache.invalidate("a/b");
+    cache.put(key("a/"), "stale", generation);
+    Assert.assertNull(cache.get(key("a/")));
+  }
+
+  @Test
+  public void testEvictedBranchesPruned() {
+    ListingCache<String> cache = newCache();
+    put(cache, "a/b/c/", "a/b/d/", "x/");
+    // root, a, a/b, a/b/c, a/b/d, x
+    Assert.assertEquals(6, cache.getTrieSize());
+    cache.invalidate("a/b/c/file");
+    Assert.assertEquals(5, cache.getTrieSize());
+    cache.invalidate("a/b/d/file");
+    Assert.assertEquals(2, cache.getTrieSize());
+    cache.invalidate("x/file");
+    Assert.assertEquals(1, cache.getTrieSize());
+  }
+
+  @Test
+  public void testReplacedListingKeepsItsNode() {
+    ListingCache<String> cache = newCache();
+    put(cache, "a/b/");
+    cache.put(key("a/b/"), "again", cache.getGeneration());
+    Assert.assertEquals(3, cache.getTrieSize());
+    cache.invalidate("a/b/c");
+    Assert.assertNull(cache.get(key("a/b/")));
+    Assert.assertEquals(1, cache.getTrieSize());
+  }
+
+  @Test
+  public void testLateExpiryKeepsListingCachedAgain() throws Exception {
+    ListingCache<String> cache = new ListingCache<>(1000, 100, WEIGHER);
+    put(cache, "a/");
+    Thread.sleep(200);
+    // the expired listing is removed while the new one is cached
+    cache.put(key("a/"), "again", cache.getGeneration());
+    Assert.assertEquals("again", cache.get(key("a/")));
+    cache.invalidate("a/new-object");
+    Assert.assertNull(cache.get(key("a/")));
+    Assert.assertEquals(1, cache.getTrieSize());
+  }
+}
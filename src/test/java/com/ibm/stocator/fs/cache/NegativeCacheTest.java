@@ -0,0 +1,68 @@
+/**
+ * (C) Copyright IBM Corp. 2015, 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.stocator.fs.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NegativeCacheTest {
+
+  @Test
+  public void testDisabledWithoutTTL() {
+    NegativeCache cache = new NegativeCache(100, 0);
+    cache.putNotFound("a/b", cache.getGeneration());
+    Assert.assertFalse(cache.isNotFound("a/b"));
+  }
+
+  @Test
+  public void testTrailingSlashIgnored() {
+    NegativeCache cache = new NegativeCache(100, 60000);
+    cache.putNotFound("a/b/", cache.getGeneration());
+    Assert.assertTrue(cache.isNotFound("a/b"));
+    Assert.assertTrue(cache.isNotFound("a/b/"));
+    Assert.assertFalse(cache.isNotFound("a"));
+  }
+
+  @Test
+  public void testInvalidateParentsAndChildren() {
+    NegativeCache cache = new NegativeCache(100, 60000);
+    long generation = cache.getGeneration();
+    for (String name : new String[] {"a", "a/b", "a/b/c", "a/b/c/d", "a/bc", "x"}) {
+      cache.putNotFound(name, generation);
+    }
+    cache.invalidate("a/b/c");
+    Assert.assertFalse(cache.isNotFound("a"));
+    Assert.assertFalse(cache.isNotFound("a/b"));
+    Assert.assertFalse(cache.isNotFound("a/b/c"));
+    Assert.assertFalse(cache.isNotFound("a/b/c/d"));
+    Assert.assertTrue(cache.isNotFound("a/bc"));
+    Assert.assertTrue(cache.isNotFound("x"));
+  }
+
+  @Test
+  public void testLookupBeforeWriteNotCached() {
+    NegativeCache cache = new NegativeCache(100, 60000);
+    long generation = cache.getGeneration();
+    // the object is written while the lookup which did not find it runs
+    cache.invalidate("a/b");
+    cache.putNotFound("a/b", generation);
+    Assert.assertFalse(cache.isNotFound("a/b"));
+    cache.putNotFound("a/b", cache.getGeneration());
+    Assert.assertTrue(cache.isNotFound("a/b"));
+  }
+}
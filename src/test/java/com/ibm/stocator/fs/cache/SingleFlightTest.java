@@ -0,0 +1,131 @@
+/**
+ * (C) Copyright IBM Corp. 2015, 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.stocator.fs.cache;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SingleFlightTest {
+
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final SingleFlight<String, String> flights = new SingleFlight<>("test");
+  private final AtomicInteger requests = new AtomicInteger();
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * A request which blocks until released
+   */
+  private Callable<String> blockingRequest(final CountDownLatch started,
+      final CountDownLatch release, final String result) {
+    return new Callable<String>() {
+      @Override
+      public String call() throws Exception {
+        requests.incrementAndGet();
+        started.countDown();
+        release.await();
+        if (result == null) {
+          throw new FileNotFoundException("not found");
+        }
+        return result;
+      }
+    };
+  }
+
+  private Future<String> executeAsync(final String key, final Callable<String> request) {
+    return executor.submit(new Callable<String>() {
+      @Override
+      public String call() throws IOException {
+        return flights.execute(key, request);
+      }
+    });
+  }
+
+  @Test
+  public void testConcurrentCallsShareRequest() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Future<String> leader = executeAsync("k", blockingRequest(started, release, "v"));
+    Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+    Future<String> follower = executeAsync("k", blockingRequest(started, release, "other"));
+    // let the follower join the flight before it completes
+    Thread.sleep(100);
+    release.countDown();
+    Assert.assertEquals("v", leader.get(10, TimeUnit.SECONDS));
+    Assert.assertEquals("v", follower.get(10, TimeUnit.SECONDS));
+    Assert.assertEquals(1, requests.get());
+  }
+
+  @Test
+  public void testExceptionShared() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Future<String> leader = executeAsync("k", blockingRequest(started, release, null));
+    Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+    Future<String> follower = executeAsync("k", blockingRequest(started, release, "v"));
+    Thread.sleep(100);
+    release.countDown();
+    for (Future<String> future : Arrays.asList(leader, follower)) {
+      try {
+        future.get(10, TimeUnit.SECONDS);
+        Assert.fail("expected FileNotFoundException");
+      } catch (ExecutionException e) {
+        Assert.assertTrue(e.getCause() instanceof FileNotFoundException);
+      }
+    }
+    Assert.assertEquals(1, requests.get());
+  }
+
+  @Test
+  public void testDifferentKeysNotShared() throws Exception {
+    CountDownLatch started = new CountDownLatch(2);
+    CountDownLatch release = new CountDownLatch(1);
+    Future<String> first = executeAsync("k1", blockingRequest(started, release, "v1"));
+    Future<String> second = executeAsync("k2", blockingRequest(started, release, "v2"));
+    Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+    release.countDown();
+    Assert.assertEquals("v1", first.get(10, TimeUnit.SECONDS));
+    Assert.assertEquals("v2", second.get(10, TimeUnit.SECONDS));
+    Assert.assertEquals(2, requests.get());
+  }
+
+  @Test
+  public void testNothingKeptAfterCompletion() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(0);
+    Assert.assertEquals("v1", flights.execute("k", blockingRequest(started, release, "v1")));
+    Assert.assertEquals("v2", flights.execute("k", blockingRequest(started, release, "v2")));
+    Assert.assertEquals(2, requests.get());
+  }
+}
@@ -0,0 +1,67 @@
+/**
+ * (C) Copyright IBM Corp. 2015, 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.stocator.fs.cos;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class COSAdaptiveInputPolicyTest {
+
+  private static final long READAHEAD = 64 * 1024;
+
+  @Test
+  public void testSwitchToRandomAfterConsecutiveSeeks() {
+    COSAdaptiveInputPolicy policy = new COSAdaptiveInputPolicy();
+    Assert.assertFalse(policy.onRead(0, 1000, READAHEAD, false));
+    Assert.assertEquals(COSInputPolicy.Sequential, policy.getPolicy());
+    Assert.assertTrue(policy.onRead(10 * READAHEAD, 100, READAHEAD, false));
+    Assert.assertEquals(COSInputPolicy.Random, policy.getPolicy());
+  }
+
+  @Test
+  public void testInWindowReadResetsRandomSeeks() {
+    COSAdaptiveInputPolicy policy = new COSAdaptiveInputPolicy();
+    policy.onRead(0, 1000, READAHEAD, false);
+    // a forward read within the readahead range, not at a request end
+    Assert.assertFalse(policy.onRead(2000, 1000, READAHEAD, false));
+    Assert.assertFalse(policy.onRead(0, 3000, READAHEAD, false));
+    Assert.assertEquals(COSInputPolicy.Sequential, policy.getPolicy());
+  }
+
+  @Test
+  public void testSwitchBackToSequential() {
+    COSAdaptiveInputPolicy policy = new COSAdaptiveInputPolicy();
+    policy.onRead(0, 1000, READAHEAD, false);
+    policy.onRead(0, 1000, READAHEAD, false);
+    Assert.assertEquals(COSInputPolicy.Random, policy.getPolicy());
+    Assert.assertFalse(policy.onRead(500, 500, READAHEAD, true));
+    Assert.assertTrue(policy.onRead(1000, 1000, READAHEAD, true));
+    Assert.assertEquals(COSInputPolicy.Sequential, policy.getPolicy());
+  }
+
+  @Test
+  public void testSeekInterruptsSequentialReads() {
+    COSAdaptiveInputPolicy policy = new COSAdaptiveInputPolicy();
+    policy.onRead(0, 1000, READAHEAD, false);
+    policy.onRead(0, 1000, READAHEAD, false);
+    policy.onRead(500, 500, READAHEAD, true);
+    policy.onRead(0, 1000, READAHEAD, false);
+    Assert.assertFalse(policy.onRead(1000, 1000, READAHEAD, true));
+    Assert.assertEquals(COSInputPolicy.Random, policy.getPolicy());
+  }
+}
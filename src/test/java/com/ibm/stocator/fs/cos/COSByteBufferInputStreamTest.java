@@ -0,0 +1,47 @@
+/**
+ * (C) Copyright IBM Corp. 2015, 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.stocator.fs.cos;
+
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class COSByteBufferInputStreamTest {
+
+  private COSDataBlocks.ByteBufferInputStream newStream() {
+    ByteBuffer buffer = ByteBuffer.wrap(new byte[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9});
+    return new COSDataBlocks.ByteBufferInputStream(10, buffer);
+  }
+
+  @Test
+  public void testSkipReturnsBytesSkipped() throws Exception {
+    COSDataBlocks.ByteBufferInputStream in = newStream();
+    Assert.assertEquals(0, in.read());
+    Assert.assertEquals(3, in.skip(3));
+    Assert.assertEquals(4, in.read());
+    Assert.assertEquals(5, in.skip(5));
+    Assert.assertEquals(-1, in.read());
+  }
+
+  @Test(expected = EOFException.class)
+  public void testSkipPastEnd() throws Exception {
+    newStream().skip(11);
+  }
+}
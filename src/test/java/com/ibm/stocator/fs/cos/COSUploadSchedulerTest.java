@@ -0,0 +1,115 @@
+/**
+ * (C) Copyright IBM Corp. 2015, 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.stocator.fs.cos;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+
+public class COSUploadSchedulerTest {
+
+  private final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+  private Runnable record(final String name) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        order.add(name);
+      }
+    };
+  }
+
+  /**
+   * Occupy the only thread of a scheduler until the returned latch is
+   * counted down, so that the tasks submitted meanwhile are queued
+   */
+  private CountDownLatch occupy(Executor executor) throws InterruptedException {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+    return release;
+  }
+
+  @Test
+  public void testStreamsServedInTurn() throws Exception {
+    COSUploadScheduler scheduler = new COSUploadScheduler(1);
+    ListeningExecutorService a = scheduler.newStreamExecutor();
+    ListeningExecutorService b = scheduler.newStreamExecutor();
+    CountDownLatch release = occupy(a);
+    a.submit(record("a1"));
+    a.submit(record("a2"));
+    a.submit(record("a3"));
+    b.submit(record("b1"));
+    ListenableFuture<?> last = b.submit(record("b2"));
+    Assert.assertEquals(5, scheduler.getQueueDepth());
+    release.countDown();
+    last.get(10, TimeUnit.SECONDS);
+    a.submit(record("a4")).get(10, TimeUnit.SECONDS);
+    Assert.assertEquals(Arrays.asList("a1", "b1", "a2", "b2", "a3", "a4"), order);
+  }
+
+  @Test
+  public void testPriorityTasksFirst() throws Exception {
+    COSUploadScheduler scheduler = new COSUploadScheduler(1);
+    ListeningExecutorService stream = scheduler.newStreamExecutor();
+    CountDownLatch release = occupy(stream);
+    stream.submit(record("part1"));
+    stream.submit(record("part2"));
+    scheduler.getPriorityExecutor().submit(record("put1"));
+    scheduler.getPriorityExecutor().submit(record("put2"));
+    Assert.assertEquals(2, scheduler.getPriorityQueueDepth());
+    release.countDown();
+    stream.submit(record("part3")).get(10, TimeUnit.SECONDS);
+    Assert.assertEquals(Arrays.asList("put1", "put2", "part1", "part2", "part3"), order);
+  }
+
+  @Test
+  public void testWorkerSurvivesError() throws Exception {
+    COSUploadScheduler scheduler = new COSUploadScheduler(1);
+    ListeningExecutorService stream = scheduler.newStreamExecutor();
+    stream.execute(new Runnable() {
+      @Override
+      public void run() {
+        throw new AssertionError("task failure");
+      }
+    });
+    stream.submit(record("next")).get(10, TimeUnit.SECONDS);
+    Assert.assertEquals(Arrays.asList("next"), order);
+  }
+}
@@ -0,0 +1,60 @@
+/**
+ * (C) Copyright IBM Corp. 2015, 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.stocator.fs.cos.tests;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.ibm.stocator.fs.cos.COSFileRange;
+import com.ibm.stocator.fs.cos.COSFileRange.CombinedFileRange;
+
+public class COSFileRangeTest {
+
+  @Test
+  public void testMergeSortsAndCoalesces() {
+    COSFileRange a = new COSFileRange(1000, 100);
+    COSFileRange b = new COSFileRange(0, 100);
+    COSFileRange c = new COSFileRange(150, 50);
+    List<CombinedFileRange> merged = COSFileRange.mergeRanges(
+        Arrays.asList(a, b, c), 100, 1024);
+    Assert.assertEquals(2, merged.size());
+    Assert.assertEquals(0, merged.get(0).getOffset());
+    Assert.assertEquals(200, merged.get(0).getLength());
+    Assert.assertEquals(Arrays.asList(b, c), merged.get(0).getUnderlying());
+    Assert.assertEquals(1000, merged.get(1).getOffset());
+    Assert.assertEquals(Arrays.asList(a), merged.get(1).getUnderlying());
+  }
+
+  @Test
+  public void testMergeHonoursMaxSize() {
+    List<CombinedFileRange> merged = COSFileRange.mergeRanges(
+        Arrays.asList(new COSFileRange(0, 600), new COSFileRange(600, 600),
+            new COSFileRange(1200, 2000)), 100, 1024);
+    Assert.assertEquals(3, merged.size());
+    Assert.assertEquals(2000, merged.get(2).getLength());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testOverlappingRangesRejected() {
+    COSFileRange.mergeRanges(
+        Arrays.asList(new COSFileRange(0, 100), new COSFileRange(50, 100)), 0, 1024);
+  }
+}
@@ -0,0 +1,61 @@
+/**
+ * (C) Copyright IBM Corp. 2015, 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.stocator.fs.cos.tests;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.ibm.stocator.fs.cos.COSConstants;
+import com.ibm.stocator.fs.cos.COSUtils;
+
+public class COSPartSizeTest {
+
+  private static final long MB = 1024 * 1024;
+
+  @Test
+  public void testSizeDoublesEveryInterval() {
+    long[] expected = {8, 8, 8, 16, 16, 16, 32, 32, 32, 64, 64, 64, 64};
+    for (int index = 1; index <= expected.length; index++) {
+      Assert.assertEquals("part " + index, expected[index - 1] * MB,
+          COSUtils.getPartSize(8 * MB, 64 * MB, 3, index));
+    }
+  }
+
+  @Test
+  public void testFixedSizeWithoutGrowth() {
+    Assert.assertEquals(8 * MB, COSUtils.getPartSize(8 * MB, 64 * MB, 0, 1));
+    Assert.assertEquals(8 * MB, COSUtils.getPartSize(8 * MB, 64 * MB, 0, 20000));
+  }
+
+  @Test
+  public void testMaximumBelowInitialSize() {
+    Assert.assertEquals(8 * MB, COSUtils.getPartSize(8 * MB, 4 * MB, 1, 5));
+  }
+
+  @Test
+  public void testDefaultsCoverLargeObjects() {
+    long total = 0;
+    for (int index = 1; index <= COSConstants.MAX_MULTIPART_COUNT; index++) {
+      total += COSUtils.getPartSize(COSConstants.DEFAULT_MULTIPART_SIZE,
+          COSConstants.DEFAULT_MULTIPART_SIZE_MAX,
+          COSConstants.DEFAULT_MULTIPART_SIZE_GROWTH_INTERVAL, index);
+    }
+    // 1000 parts of each of 8, 16, 32, 64 and 128 MB, then 256 MB parts
+    Assert.assertEquals((1000L * (8 + 16 + 32 + 64 + 128) + 5000L * 256) * MB, total);
+  }
+}